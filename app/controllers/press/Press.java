@@ -1,9 +1,13 @@
 package controllers.press;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
@@ -11,11 +15,19 @@ import org.joda.time.format.DateTimeFormatter;
 
 import play.exceptions.UnexpectedException;
 import play.mvc.Controller;
+import play.mvc.Http.Header;
+import press.AssetFingerprints;
 import press.CachingStrategy;
+import press.CompressionFailures;
+import press.CompressionScheduler;
+import press.CompressionTimeouts;
+import press.InlineBundles;
+import press.PeerFiles;
 import press.PluginConfig;
 import press.ScriptCompressedFileManager;
 import press.ScriptCompressor;
 import press.ScriptRequestHandler;
+import press.SharedChunks;
 import press.StyleCompressedFileManager;
 import press.StyleCompressor;
 import press.StyleRequestHandler;
@@ -26,18 +38,72 @@ public class Press extends Controller {
     public static final DateTimeFormatter httpDateTimeFormatter = DateTimeFormat
             .forPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
 
+    // If the compressed file is being generated, these actions suspend until
+    // it is ready, or until the time allowed for compression has passed,
+    // rather than holding on to an invocation thread
     public static void getCompressedJS(String key) {
         key = FileIO.unescape(key);
-        CompressedFile compressedFile = new ScriptCompressedFileManager().getCompressedFile(key);
+        CompressedFile compressedFile = await(CompressionScheduler
+                .withTimeout(new ScriptCompressedFileManager().getCompressedFileAsync(key)));
         renderCompressedFile(compressedFile, "JavaScript");
     }
 
     public static void getCompressedCSS(String key) {
         key = FileIO.unescape(key);
-        CompressedFile compressedFile = new StyleCompressedFileManager().getCompressedFile(key);
+        CompressedFile compressedFile = await(CompressionScheduler
+                .withTimeout(new StyleCompressedFileManager().getCompressedFileAsync(key)));
         renderCompressedFile(compressedFile, "CSS");
     }
 
+    /**
+     * Serves a compressed file to another server in the pool, by its content
+     * key. The file is never generated here for another server.
+     */
+    public static void getPeerFile(String key) {
+        if (!PeerFiles.isEnabled() || !PeerFiles.isContentKey(key)) {
+            notFound();
+        }
+
+        String compressedDir;
+        String type;
+        if (key.endsWith(ScriptCompressor.EXTENSION)) {
+            compressedDir = PluginConfig.js.compressedDir;
+            type = "JavaScript";
+        } else if (key.endsWith(StyleCompressor.EXTENSION)) {
+            compressedDir = PluginConfig.css.compressedDir;
+            type = "CSS";
+        } else {
+            notFound();
+            return;
+        }
+
+        CompressedFile compressedFile = CompressedFile.create(key, compressedDir);
+        if (!compressedFile.exists()) {
+            notFound();
+        }
+        renderCompressedFile(compressedFile, type);
+    }
+
+    /**
+     * Serves an asset referenced from a stylesheet. If the fingerprint is
+     * that of the current content of the asset, the browser may cache it
+     * indefinitely.
+     */
+    public static void getAsset(String fingerprint, String path) {
+        File file = AssetFingerprints.getPublicFile("/" + path);
+        if (file == null) {
+            notFound();
+        }
+
+        if (AssetFingerprints.getFingerprint(file).equals(fingerprint)) {
+            // Cache for a year
+            response.setHeader("Cache-Control", "max-age=" + 31536000);
+            response.setHeader("Expires", httpDateTimeFormatter.print(new DateTime().plusYears(1)));
+        }
+
+        renderBinary(file);
+    }
+
     private static void renderCompressedFile(CompressedFile compressedFile, String type) {
         flash.keep();
 
@@ -45,6 +111,19 @@ public class Press extends Controller {
             renderBadResponse(type);
         }
 
+        // The hash of the content identifies the content, so if the browser
+        // already has a copy with the same hash, it doesn't need it again
+        String digest = compressedFile.getDigest();
+        if (digest != null) {
+            String etag = "\"" + digest + "\"";
+            response.setHeader("ETag", etag);
+            Header ifNoneMatch = request.headers.get("if-none-match");
+            if (ifNoneMatch != null && ifNoneMatch.value().contains(etag)) {
+                setCacheHeaders(compressedFile);
+                notModified();
+            }
+        }
+
         InputStream inputStream = compressedFile.inputStream();
 
         // This seems to be buggy, so instead of passing the file length we
@@ -71,6 +150,18 @@ public class Press extends Controller {
         // part of the key, so if the file changes, the key in the html file
         // will be modified, and the browser will request a new version. Each
         // version can therefore be cached indefinitely.
+        setCacheHeaders(compressedFile);
+        renderBinary(inputStream, compressedFile.name());
+    }
+
+    private static void setCacheHeaders(CompressedFile compressedFile) {
+        // A file with some files that there was no time to compress will be
+        // generated again, so the browser must not keep it
+        if (!compressedFile.isComplete()) {
+            response.setHeader("Cache-Control", "no-cache");
+            return;
+        }
+
         if (PluginConfig.cache.equals(CachingStrategy.Change)) {
             // Cache for a year
             response.setHeader("Cache-Control", "max-age=" + 31536000);
@@ -79,8 +170,6 @@ public class Press extends Controller {
                 response.setHeader("P3P", PluginConfig.p3pHeader);
             }
         }
-
-        renderBinary(inputStream, compressedFile.name());
     }
 
     public static void clearJSCache() {
@@ -88,6 +177,9 @@ public class Press extends Controller {
             forbidden();
         }
 
+        CompressionFailures.clear();
+        CompressionTimeouts.clear();
+        InlineBundles.clear();
         int count = ScriptRequestHandler.clearCache();
         renderText("Cleared " + count + " JS files from cache");
     }
@@ -97,10 +189,57 @@ public class Press extends Controller {
             forbidden();
         }
 
+        CompressionFailures.clear();
+        CompressionTimeouts.clear();
+        InlineBundles.clear();
         int count = StyleRequestHandler.clearCache();
         renderText("Cleared " + count + " CSS files from cache");
     }
 
+    public static void listFailures() {
+        if (!PluginConfig.cacheClearEnabled) {
+            forbidden();
+        }
+
+        StringBuilder out = new StringBuilder();
+        Map<String, String> failing = CompressionFailures.getFailingFiles();
+        out.append(failing.size() + " files failed to compress\n");
+        for (Entry<String, String> entry : failing.entrySet()) {
+            out.append(entry.getKey() + ": " + entry.getValue() + "\n");
+        }
+
+        Map<String, String> timedOut = CompressionTimeouts.getTimedOutFiles();
+        out.append("\n" + timedOut.size() + " files timed out during compression\n");
+        for (Entry<String, String> entry : timedOut.entrySet()) {
+            out.append(entry.getKey() + ": " + entry.getValue() + "\n");
+        }
+        renderText(out);
+    }
+
+    public static void listSharedChunks() {
+        if (!PluginConfig.cacheClearEnabled) {
+            forbidden();
+        }
+
+        StringBuilder out = new StringBuilder();
+        List<SharedChunks.Chunk> chunks = SharedChunks.getChunks();
+        long totalSaved = 0;
+        for (SharedChunks.Chunk chunk : chunks) {
+            totalSaved += chunk.getBytesSaved();
+        }
+        out.append(chunks.size() + " shared chunks, saving about " + totalSaved
+                + " bytes of source files\n");
+
+        for (SharedChunks.Chunk chunk : chunks) {
+            out.append("\n" + chunk.files.size() + " files used by " + chunk.getBundleCount()
+                    + " bundles, saving about " + chunk.getBytesSaved() + " bytes\n");
+            for (String path : chunk.files) {
+                out.append(path + "\n");
+            }
+        }
+        renderText(out);
+    }
+
     private static void renderBadResponse(String fileType) {
         String response = "/*\n";
         response += "The compressed " + fileType + " file could not be generated.\n";
@@ -0,0 +1,127 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.mvc.Router;
+import press.io.ContentDigest;
+import press.io.FileIO;
+import press.io.SourceFileMetadata;
+
+/**
+ * Keeps a hash of the content of each asset (eg image or font) referenced
+ * from stylesheets, so that the asset can be given a url that changes
+ * whenever its content changes, and the browser can cache it indefinitely.
+ */
+public class AssetFingerprints {
+    // The number of hex digits of the hash used in urls
+    static final int FINGERPRINT_LENGTH = 12;
+
+    static class Fingerprint {
+        final long lastModified;
+        final String hash;
+        final String url;
+
+        Fingerprint(long lastModified, String hash, String url) {
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.url = url;
+        }
+    }
+
+    // Maps the absolute path of the asset to its fingerprint
+    private static final ConcurrentMap<String, Fingerprint> fingerprints =
+            new ConcurrentHashMap<String, Fingerprint>();
+
+    // The url of the asset action, with place holders for the parameters
+    private static String urlTemplate;
+
+    /**
+     * Gets the asset at the given path, relative to the application root, or
+     * null if it doesn't exist or is not in the public directory
+     */
+    public static File getPublicFile(String path) {
+        File file = new File(new File(Play.applicationPath, path).toURI().normalize());
+        return isPublic(file) ? file : null;
+    }
+
+    /**
+     * Whether the file exists and is in the application's public directory,
+     * which is the only directory assets can be served from
+     */
+    public static boolean isPublic(File file) {
+        String publicDir = new File(Play.applicationPath, "public").getAbsolutePath()
+                + File.separator;
+        return file.getAbsolutePath().startsWith(publicDir) && file.isFile()
+                && SourceFileMetadata.get(file).exists();
+    }
+
+    /**
+     * Gets the hash of the current content of the asset
+     */
+    public static String getFingerprint(File file) {
+        return getCurrent(file).hash;
+    }
+
+    /**
+     * Gets the url of the current content of the asset, including the content
+     * hosting domain
+     */
+    public static String getUrl(File file) {
+        return getCurrent(file).url;
+    }
+
+    private static Fingerprint getCurrent(File file) {
+        long lastModified = SourceFileMetadata.lastModified(file);
+        Fingerprint fingerprint = fingerprints.get(file.getAbsolutePath());
+        if (fingerprint == null || fingerprint.lastModified != lastModified) {
+            String hash = hash(file);
+            fingerprint = new Fingerprint(lastModified, hash, createUrl(file, hash));
+            fingerprints.put(file.getAbsolutePath(), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private static String createUrl(File file, String hash) {
+        if (urlTemplate == null) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("fingerprint", "FINGERPRINT");
+            params.put("path", "PATH");
+            urlTemplate = Router.reverse("press.Press.getAsset", params).url;
+        }
+
+        // The path relative to the application root, without the leading
+        // slash, with each part escaped
+        String path = file.getAbsolutePath().substring(
+                Play.applicationPath.getAbsolutePath().length() + 1);
+        StringBuilder escaped = new StringBuilder(path.length() + 16);
+        for (String part : path.split(File.separatorChar == '\\' ? "\\\\" : File.separator)) {
+            if (escaped.length() > 0) {
+                escaped.append('/');
+            }
+            escaped.append(FileIO.escape(part).replace("+", "%20"));
+        }
+
+        return PluginConfig.contentHostingDomain
+                + urlTemplate.replace("FINGERPRINT", hash).replace("PATH", escaped);
+    }
+
+    private static String hash(File file) {
+        try {
+            return ContentDigest.of(file).substring(0, FINGERPRINT_LENGTH);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    public static void clear() {
+        fingerprints.clear();
+        urlTemplate = null;
+    }
+}
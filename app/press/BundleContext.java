@@ -0,0 +1,84 @@
+package press;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The state of the compressed file currently being written, made available
+ * to the thread that compresses each of its component files.
+ */
+public class BundleContext {
+    private static final ThreadLocal<BundleContext> current = new ThreadLocal<BundleContext>();
+
+    // The absolute paths of the files whose content has been added to the
+    // compressed file so far, including files imported by other files
+    private final Set<String> includedFiles = new HashSet<String>();
+
+    // The number of bytes of data uris in the compressed file so far
+    private int dataUriBytes;
+
+    /**
+     * Gets the context of the compressed file being written by the current
+     * thread, or null if the current thread is not writing one
+     */
+    public static BundleContext current() {
+        return current.get();
+    }
+
+    static void set(BundleContext context) {
+        if (context == null) {
+            current.remove();
+        } else {
+            current.set(context);
+        }
+    }
+
+    /**
+     * Creates a copy of this context, for an attempt to compress a file that
+     * may be abandoned
+     */
+    synchronized BundleContext fork() {
+        BundleContext fork = new BundleContext();
+        fork.includedFiles.addAll(includedFiles);
+        fork.dataUriBytes = dataUriBytes;
+        return fork;
+    }
+
+    /**
+     * Takes on the state of a forked context whose attempt succeeded
+     */
+    void merge(BundleContext fork) {
+        synchronized (fork) {
+            synchronized (this) {
+                includedFiles.addAll(fork.includedFiles);
+                dataUriBytes = Math.max(dataUriBytes, fork.dataUriBytes);
+            }
+        }
+    }
+
+    /**
+     * Marks the file as included in the compressed file
+     * 
+     * @return false if the file was already included
+     */
+    public synchronized boolean include(File file) {
+        // Imported files are normalized, so normalize here too, eg
+        // dir/../file.css
+        return includedFiles.add(new File(file.toURI().normalize()).getAbsolutePath());
+    }
+
+    /**
+     * Counts the given number of bytes of data uris towards the limit for the
+     * compressed file
+     * 
+     * @return false if there is no room for them
+     */
+    public synchronized boolean reserveDataUriBytes(int bytes) {
+        if (dataUriBytes + bytes > PluginConfig.css.dataUriBundleMaxBytes) {
+            return false;
+        }
+        dataUriBytes += bytes;
+        return true;
+    }
+}
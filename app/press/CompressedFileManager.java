@@ -1,12 +1,22 @@
 package press;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
+import play.libs.F.Promise;
 import play.vfs.VirtualFile;
 import press.io.CompressedFile;
 
 public abstract class CompressedFileManager {
+    // The compressed files currently being generated, by compressed file key
+    private static final ConcurrentMap<String, Generation> inProgress =
+            new ConcurrentHashMap<String, Generation>();
+
     private PressFileWriter pressFileWriter;
     private Compressor compressor;
 
@@ -19,32 +29,216 @@ public abstract class CompressedFileManager {
      * Get the compressed file with the given compression key
      */
     public CompressedFile getCompressedFile(String key) {
+        return CompressionScheduler.waitFor(getCompressedFileAsync(key));
+    }
+
+    /**
+     * Get a promise for the compressed file with the given compression key.
+     * The promise is redeemed with null if the key is not found.
+     */
+    public Promise<CompressedFile> getCompressedFileAsync(String key) {
         List<FileInfo> componentFiles = SourceFileManager.getSourceFiles(key);
 
         // If there was nothing found for the given request key, return null.
         // This shouldn't happen unless there was a very long delay between the
         // template being rendered and the compressed file being requested
         if (componentFiles == null) {
-            return null;
+            return redeemed(null);
         }
 
-        return getCompressedFile(componentFiles);
+        return getCompressedFileAsync(componentFiles, CompressionPriority.Interactive);
     }
 
     /**
      * Get the compressed file for the given set of component files
      */
     public CompressedFile getCompressedFile(List<FileInfo> componentFiles) {
-        // First check if the compressor has a cached copy of the file
+        return CompressionScheduler.waitFor(getCompressedFileAsync(componentFiles,
+                CompressionPriority.Interactive));
+    }
+
+    /**
+     * Queue generation of the compressed file for the given set of component
+     * files, if there is no cached copy. Use a background priority to make
+     * sure the work never delays a browser waiting for a compressed file.
+     */
+    public Promise<CompressedFile> scheduleGeneration(List<FileInfo> componentFiles,
+            CompressionPriority priority) {
+        return getCompressedFileAsync(componentFiles, priority);
+    }
+
+    /**
+     * Get a promise for the compressed file for the given set of component
+     * files, which is redeemed once the file has been generated. If the file
+     * is already being generated, the promise for the generation in progress
+     * is returned, so that no thread is needed to wait for it.
+     */
+    public Promise<CompressedFile> getCompressedFileAsync(List<FileInfo> componentFiles,
+            CompressionPriority priority) {
         String key = compressor.getCompressedFileKey(componentFiles);
         CompressedFile file = CompressedFile.create(key, getCompressedDir());
-        if (CacheManager.useCachedFile(file)) {
+
+        Generation generation = inProgress.get(key);
+        if (generation != null) {
+            return generation.waitWithPriority(priority);
+        }
+
+        // If a browser is waiting, check the cache now. Background tasks
+        // check it when they get to run.
+        boolean interactive = (priority == CompressionPriority.Interactive);
+        if (interactive && CacheManager.useCachedFile(file)) {
+            return redeemed(file);
+        }
+
+        generation = new Generation(interactive);
+        Generation existing = inProgress.putIfAbsent(key, generation);
+        if (existing != null) {
+            return existing.waitWithPriority(priority);
+        }
+
+        GenerationTask task = new GenerationTask(key, componentFiles, file, generation,
+                !interactive);
+        generation.setTask(CompressionScheduler.submit(task, priority));
+        return generation.promise;
+    }
+
+    /**
+     * Tells anyone waiting for a compressed file that is being generated that
+     * it won't be, eg because the compression threads have been stopped
+     */
+    static void abandonAll() {
+        for (Generation generation : inProgress.values()) {
+            generation.promise.invokeWithException(new PressException("Compression stopped"));
+        }
+        inProgress.clear();
+    }
+
+    private static Promise<CompressedFile> redeemed(CompressedFile file) {
+        Promise<CompressedFile> promise = new Promise<CompressedFile>();
+        promise.invoke(file);
+        return promise;
+    }
+
+    /**
+     * A compressed file that is being generated
+     */
+    static class Generation {
+        final Promise<CompressedFile> promise = new Promise<CompressedFile>();
+        Future<CompressedFile> task;
+
+        // The time at which a browser started waiting for the file, or zero
+        // if none is waiting
+        long waitingSince;
+
+        Generation(boolean interactive) {
+            if (interactive) {
+                waitingSince = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Gets the promise for the compressed file, making sure that the
+         * generation has at least the given priority
+         */
+        synchronized Promise<CompressedFile> waitWithPriority(CompressionPriority priority) {
+            if (priority == CompressionPriority.Interactive && waitingSince == 0) {
+                waitingSince = System.currentTimeMillis();
+            }
+            if (task != null) {
+                task = CompressionScheduler.promote(task, priority);
+            }
+            return promise;
+        }
+
+        synchronized void setTask(Future<CompressedFile> task) {
+            this.task = task;
+        }
+
+        /**
+         * The time from which to measure the time allowed for generation:
+         * now, or earlier if a browser has already been waiting, so that the
+         * generation runs out of time before the browser stops waiting
+         */
+        synchronized long getStartTime() {
+            long now = System.currentTimeMillis();
+            return waitingSince == 0 ? now : Math.min(now, waitingSince);
+        }
+    }
+
+    private class GenerationTask implements Callable<CompressedFile> {
+        String key;
+        List<FileInfo> componentFiles;
+        CompressedFile file;
+        Generation generation;
+        boolean checkCache;
+
+        GenerationTask(String key, List<FileInfo> componentFiles, CompressedFile file,
+                Generation generation, boolean checkCache) {
+            this.key = key;
+            this.componentFiles = componentFiles;
+            this.file = file;
+            this.generation = generation;
+            this.checkCache = checkCache;
+        }
+
+        public CompressedFile call() {
+            CompressedFile result;
+            try {
+                // The file may have been generated while the task was queued
+                if (checkCache && CacheManager.useCachedFile(file)) {
+                    result = file;
+                } else {
+                    result = generate(componentFiles, file, generation.getStartTime());
+                }
+
+                generation.promise.invoke(result);
+            } catch (RuntimeException e) {
+                generation.promise.invokeWithException(e);
+                throw e;
+            } finally {
+                inProgress.remove(key, generation);
+            }
+
+            // If there was no time to compress some of the files while a
+            // browser was waiting, generate the file again in the background
+            // so that it is stored. A background generation is not repeated,
+            // so that a server that stays busy doesn't keep trying.
+            if (!result.isComplete() && !checkCache) {
+                scheduleGeneration(componentFiles, CompressionPriority.Regeneration);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Generates the compressed file, unless another version of it with the
+     * same content can be found here or on another server
+     */
+    private CompressedFile generate(List<FileInfo> componentFiles, CompressedFile file,
+            long startTime) {
+        String contentKey = null;
+        if (PeerFiles.isEnabled()) {
+            try {
+                contentKey = compressor.getContentKey(componentFiles);
+            } catch (IOException e) {
+                PressLogger.trace("Could not get content key: %s", e.getMessage());
+            }
+        }
+
+        if (contentKey != null && PeerFiles.fetch(contentKey, file, getCompressedDir())) {
             return file;
         }
 
-        // If there is no cached file, generate one
-        return pressFileWriter.writeCompressedFile(componentFiles, file);
+        PressFileWriter.Output output = pressFileWriter.writeCompressedFile(componentFiles,
+                file, startTime);
+
+        // Output with fallbacks in it is not given to other servers, which
+        // may be able to compress all the files
+        if (contentKey != null && !output.fallbackUsed) {
+            PeerFiles.register(contentKey, output.file, getCompressedDir());
+        }
+        return output.file;
     }
-    
+
     public abstract String getCompressedDir();
 }
@@ -0,0 +1,80 @@
+package press;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import play.Logger;
+
+/**
+ * Remembers the source files that could not be compressed because of an
+ * error, so that the error is not reproduced every time a compressed file
+ * containing them is generated. A failure is forgotten when the file changes.
+ */
+public class CompressionFailures {
+    public static class Failure {
+        // The version of the file that failed, eg its last modified date
+        public final long version;
+        public final String message;
+
+        // The output to use in place of the compressed file, or null to use
+        // the uncompressed file
+        public final String fallbackOutput;
+
+        Failure(long version, String message, String fallbackOutput) {
+            this.version = version;
+            this.message = message;
+            this.fallbackOutput = fallbackOutput;
+        }
+    }
+
+    // Maps the absolute path of the file to the failure
+    private static final Map<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+
+    public static void record(File file, long version, String message) {
+        record(file, version, message, null);
+    }
+
+    public static void record(File file, long version, String message, String fallbackOutput) {
+        Logger.error("Press: Could not compress %s: %s", file.getAbsolutePath(), message);
+        failures.put(file.getAbsolutePath(), new Failure(version, message, fallbackOutput));
+    }
+
+    /**
+     * Gets the failure recorded for the given version of the file, or null if
+     * that version of the file has not failed
+     */
+    public static Failure get(File file, long version) {
+        String path = file.getAbsolutePath();
+        Failure failure = failures.get(path);
+        if (failure == null) {
+            return null;
+        }
+
+        // If the file has changed since it failed, try again
+        if (failure.version != version) {
+            failures.remove(path);
+            return null;
+        }
+
+        return failure;
+    }
+
+    /**
+     * Gets the files that are currently failing, mapped to the error message
+     */
+    public static Map<String, String> getFailingFiles() {
+        Map<String, String> failing = new TreeMap<String, String>();
+        for (Entry<String, Failure> entry : failures.entrySet()) {
+            failing.put(entry.getKey(), entry.getValue().message);
+        }
+        return Collections.unmodifiableMap(failing);
+    }
+
+    public static void clear() {
+        failures.clear();
+    }
+}
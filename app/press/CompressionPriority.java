@@ -0,0 +1,20 @@
+package press;
+
+/**
+ * The priority classes for compression work, from most to least urgent.
+ */
+public enum CompressionPriority {
+    // A browser is waiting for the compressed file
+    Interactive,
+
+    // A bundle whose component files changed is generated ahead of the
+    // browser requesting it
+    Regeneration,
+
+    // Warm-up of bundles that have not been requested yet
+    Precompile;
+
+    public boolean isHigherThan(CompressionPriority other) {
+        return ordinal() < other.ordinal();
+    }
+}
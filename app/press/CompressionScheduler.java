@@ -0,0 +1,284 @@
+package press;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.libs.F.Action;
+import play.libs.F.Promise;
+import play.libs.F.Timeout;
+
+/**
+ * Runs compression on a dedicated pool of threads. Waiting work is ordered by
+ * priority, and in order of submission within the same priority, so that a
+ * browser waiting for a bundle is never queued behind background generation.
+ */
+public class CompressionScheduler {
+    private static CompressionScheduler instance;
+
+    // The number of workers for each compression thread, which leaves room
+    // for workers still running a compression that was given up on
+    static final int WORKERS_PER_THREAD = 2;
+
+    // The priority of the task running on the current thread, or null if the
+    // current thread is not a compression thread
+    private static final ThreadLocal<CompressionPriority> currentPriority =
+            new ThreadLocal<CompressionPriority>();
+
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ThreadPoolExecutor executor;
+
+    // Runs the compression of individual files, so that the thread writing
+    // the compressed file can give up on a file that takes too long. The
+    // compressors ignore interrupts, so a worker that is given up on keeps
+    // running until the compressor finishes. The number of workers is fixed
+    // so that those can't pile up.
+    private final ExecutorService workers;
+
+    private CompressionScheduler(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+                new CompressionThreadFactory("press-compression-"));
+        workers = Executors.newFixedThreadPool(threads * WORKERS_PER_THREAD,
+                new CompressionThreadFactory("press-compression-worker-"));
+    }
+
+    /**
+     * Starts the compression threads, stopping any previously started ones
+     */
+    public static synchronized void start() {
+        stop();
+        PressLogger.trace("Starting %d compression threads", PluginConfig.compressionThreads);
+        instance = new CompressionScheduler(PluginConfig.compressionThreads);
+    }
+
+    /**
+     * Stops the compression threads. Queued work is dropped, and anyone
+     * waiting for a compressed file that is being generated is told that it
+     * won't be.
+     */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance.workers.shutdownNow();
+            instance = null;
+            CompressedFileManager.abandonAll();
+        }
+    }
+
+    /**
+     * Queues the given task with the given priority.
+     */
+    public static <T> Future<T> submit(Callable<T> task, CompressionPriority priority) {
+        CompressionScheduler scheduler = instance;
+        ScheduledTask<T> scheduled = new ScheduledTask<T>(task, priority,
+                scheduler == null ? 0 : scheduler.sequence.incrementAndGet());
+
+        // If the scheduler is not running, or we're already on a compression
+        // thread (so waiting for another compression thread could deadlock),
+        // run the task on the current thread
+        if (scheduler == null || currentPriority.get() != null) {
+            scheduled.run();
+        } else {
+            try {
+                scheduler.executor.execute(scheduled);
+            } catch (RejectedExecutionException e) {
+                // The scheduler has just been stopped
+                scheduled.run();
+            }
+        }
+
+        return scheduled;
+    }
+
+    /**
+     * Moves a task that has not started yet up to the given priority, if it
+     * was queued with a lower priority
+     * 
+     * @return the task that will now perform the work
+     */
+    public static <T> Future<T> promote(Future<T> task, CompressionPriority priority) {
+        CompressionScheduler scheduler = instance;
+        if (scheduler == null || !(task instanceof ScheduledTask<?>)) {
+            return task;
+        }
+
+        ScheduledTask<T> scheduled = (ScheduledTask<T>) task;
+        if (priority.isHigherThan(scheduled.priority) && scheduler.queue.remove(scheduled)) {
+            PressLogger.trace("Promoting %s compression to %s", scheduled.priority, priority);
+            ScheduledTask<T> promoted = scheduled.withPriority(priority,
+                    scheduler.sequence.incrementAndGet());
+            scheduler.executor.execute(promoted);
+            return promoted;
+        }
+        return task;
+    }
+
+    /**
+     * Waits for the given task to complete.
+     */
+    public static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get(PluginConfig.maxCompressionTimeMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new PressException("Timeout waiting for compressed file to be generated");
+        } catch (InterruptedException e) {
+            throw new UnexpectedException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UnexpectedException(e.getCause());
+        }
+    }
+
+    /**
+     * Gets a promise that is redeemed in the same way as the given one, or
+     * fails if the given one is not redeemed in the time allowed for
+     * compression, so that a request suspended on it is never left waiting.
+     */
+    public static <T> Promise<T> withTimeout(Promise<T> promise) {
+        if (promise.isDone()) {
+            return promise;
+        }
+
+        final Promise<T> result = new Promise<T>();
+        promise.onRedeem(new Action<Promise<T>>() {
+            public void invoke(Promise<T> redeemed) {
+                try {
+                    result.invoke(redeemed.get());
+                } catch (ExecutionException e) {
+                    result.invokeWithException(e.getCause());
+                } catch (InterruptedException e) {
+                    result.invokeWithException(e);
+                }
+            }
+        });
+
+        // Whichever comes first redeems the result. Later attempts are
+        // ignored.
+        new Timeout(PluginConfig.maxCompressionTimeMillis).onRedeem(new Action<Promise<Timeout>>() {
+            public void invoke(Promise<Timeout> timeout) {
+                result.invokeWithException(new PressException(
+                        "Timeout waiting for compressed file to be generated"));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs the given task on a worker thread and waits at most the given
+     * number of milli-seconds for it to complete. If the task does not
+     * complete in time, including any time spent waiting for a free worker,
+     * the worker thread is interrupted and a TimeoutException is thrown.
+     */
+    public static <T> T runWithDeadline(Callable<T> task, long timeoutMillis) throws Exception {
+        CompressionScheduler scheduler = instance;
+        if (scheduler == null) {
+            return task.call();
+        }
+
+        Future<T> future = scheduler.workers.submit(task);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw new UnexpectedException(e.getCause());
+        }
+    }
+
+    /**
+     * A preemption point: if there is work waiting with a higher priority
+     * than the task running on the current thread, run it now, before the
+     * current task continues.
+     */
+    public static void yieldToHigherPriority() {
+        CompressionPriority priority = currentPriority.get();
+        CompressionScheduler scheduler = instance;
+        if (priority == null || scheduler == null) {
+            return;
+        }
+
+        Runnable next = scheduler.queue.peek();
+        while (next != null && ((ScheduledTask<?>) next).priority.isHigherThan(priority)) {
+            if (scheduler.queue.remove(next)) {
+                PressLogger.trace("Pausing %s compression to run %s compression", priority,
+                        ((ScheduledTask<?>) next).priority);
+                next.run();
+            }
+            next = scheduler.queue.peek();
+        }
+    }
+
+    static class ScheduledTask<T> extends FutureTask<T> implements Comparable<ScheduledTask<?>> {
+        final Callable<T> task;
+        final CompressionPriority priority;
+        final long sequence;
+
+        ScheduledTask(Callable<T> task, CompressionPriority priority, long sequence) {
+            super(task);
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Creates a task that runs the same work with a different priority
+         */
+        ScheduledTask<T> withPriority(CompressionPriority newPriority, long newSequence) {
+            return new ScheduledTask<T>(task, newPriority, newSequence);
+        }
+
+        @Override
+        public void run() {
+            CompressionPriority previous = currentPriority.get();
+            currentPriority.set(priority);
+            try {
+                super.run();
+            } finally {
+                currentPriority.set(previous);
+            }
+        }
+
+        public int compareTo(ScheduledTask<?> other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    static class CompressionThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String namePrefix;
+
+        CompressionThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(Play.classloader);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package press;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import play.Logger;
+
+/**
+ * Keeps a record of the source files that could not be compressed within the
+ * time allowed, and so were added to compressed output uncompressed. A file
+ * whose compression took too long is not compressed again until it changes,
+ * as the compressors can't be interrupted and so each attempt would leave
+ * another thread running.
+ */
+public class CompressionTimeouts {
+    static class Timeout {
+        // The version of the file that timed out, eg its last modified date
+        final long version;
+        final String message;
+
+        // Whether compression of the file itself took too long, rather than
+        // the file not being tried, eg because the whole compressed file had
+        // already taken too long
+        final boolean fileTimedOut;
+
+        Timeout(long version, String message, boolean fileTimedOut) {
+            this.version = version;
+            this.message = message;
+            this.fileTimedOut = fileTimedOut;
+        }
+    }
+
+    // Maps the absolute path of the file to the timeout
+    private static final Map<String, Timeout> timedOutFiles =
+            new ConcurrentHashMap<String, Timeout>();
+
+    public static void fileTimedOut(File file, long version, long budgetMillis) {
+        String msg = "compression took longer than " + budgetMillis + " milli-seconds";
+        record(file, new Timeout(version, msg, true));
+    }
+
+    public static void bundleTimedOut(File file, long version, String compressedFileName,
+            long budgetMillis) {
+        // Don't forget that compression of this version of the file itself
+        // took too long
+        if (hasTimedOut(file, version)) {
+            return;
+        }
+
+        String msg = "compression of " + compressedFileName + " had already taken longer than "
+                + budgetMillis + " milli-seconds";
+        record(file, new Timeout(version, msg, false));
+    }
+
+    /**
+     * Records that the file could not be compressed because no worker or
+     * engine was free in time. The compressed file holding it is not stored,
+     * and is generated again in the background.
+     */
+    public static void notStarted(File file, long version, String reason) {
+        if (hasTimedOut(file, version)) {
+            return;
+        }
+
+        record(file, new Timeout(version, "compression could not start: " + reason, false));
+    }
+
+    private static void record(File file, Timeout timeout) {
+        Logger.warn("Press: Adding %s to compressed output uncompressed: %s", file.getName(),
+                timeout.message);
+        timedOutFiles.put(file.getAbsolutePath(), timeout);
+    }
+
+    /**
+     * Indicates whether compression of the given version of the file has
+     * already taken too long
+     */
+    public static boolean hasTimedOut(File file, long version) {
+        Timeout timeout = timedOutFiles.get(file.getAbsolutePath());
+        return timeout != null && timeout.fileTimedOut && timeout.version == version;
+    }
+
+    /**
+     * Gets the files that timed out, mapped to a description of the timeout
+     */
+    public static Map<String, String> getTimedOutFiles() {
+        Map<String, String> timedOut = new TreeMap<String, String>();
+        for (Entry<String, Timeout> entry : timedOutFiles.entrySet()) {
+            timedOut.put(entry.getKey(), entry.getValue().message);
+        }
+        return Collections.unmodifiableMap(timedOut);
+    }
+
+    public static void clear() {
+        timedOutFiles.clear();
+    }
+}
@@ -4,21 +4,182 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import play.PlayPlugin;
-import play.libs.Crypto;
-import play.templates.JavaExtensions;
+import play.Play;
 import press.io.CompressedFile;
+import press.io.ContentDigest;
 import press.io.FileIO;
 
 public abstract class Compressor {
+    // The extension of the compressed output, eg ".js". Source files with
+    // no engine registered for their extension use the engine for this
+    // extension.
+    private String extension;
+
+    // The locks held while compressing with engines that are not thread safe
+    private static final ConcurrentMap<CompressorEngine, Lock> engineLocks =
+            new ConcurrentHashMap<CompressorEngine, Lock>();
+
+    protected Compressor(String extension) {
+        this.extension = extension;
+    }
+
     /**
      * A key unique for the list of component files and their last modified date
      */
-    abstract public String getCompressedFileKey(List<FileInfo> componentFiles);
+    public String getCompressedFileKey(List<FileInfo> componentFiles) {
+        Map<String, Long> files = FileInfo.getFileLastModifieds(componentFiles);
+
+        // The engine may depend on other files than the source file, eg
+        // files imported by a less file
+        for (FileInfo componentFile : componentFiles) {
+            files.put(componentFile.file.getAbsolutePath(), getFileVersion(componentFile.file));
+        }
+
+        return CacheManager.getCompressedFileKey(files, extension);
+    }
+
+    /**
+     * A key derived from the content of the component files rather than their
+     * last modified dates, which is the same on every server with the same
+     * source files, or null if the compressed output may depend on other
+     * files, eg files imported by a stylesheet
+     */
+    public String getContentKey(List<FileInfo> componentFiles) throws IOException {
+        String appPath = Play.applicationPath.getAbsolutePath() + File.separator;
+        StringBuilder key = new StringBuilder(componentFiles.size() * 128);
+        for (FileInfo componentFile : componentFiles) {
+            File file = componentFile.file;
+            String path = file.getAbsolutePath();
+            if (!canPassThrough(file) || !path.startsWith(appPath)) {
+                return null;
+            }
+
+            key.append(path.substring(appPath.length()).replace(File.separatorChar, '/'));
+            key.append('\n').append(componentFile.compress).append(componentFile.detectMinified);
+            key.append('\n').append(ContentDigest.of(file)).append('\n');
+        }
+
+        return ContentDigest.of(key.toString().getBytes("utf-8")) + extension;
+    }
+
+    /**
+     * Compresses the file. If the engine can only compress one file at a
+     * time, waits at most the given number of milli-seconds for it to be
+     * free, as it may be held by a compression that was given up on but is
+     * still running.
+     * 
+     * @throws EngineBusyException if the engine is not free in time
+     */
+    public void compress(File file, Writer out, boolean compress, long lockTimeoutMillis)
+            throws IOException, InterruptedException, EngineBusyException {
+        CompressorEngine engine = getEngine(file);
+        if (engine.isThreadSafe()) {
+            engine.compress(file, out, compress);
+            return;
+        }
+
+        Lock lock = getLock(engine);
+        if (!lock.tryLock(lockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new EngineBusyException(engine, lockTimeoutMillis);
+        }
+        try {
+            engine.compress(file, out, compress);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the locks for the engines, eg when the engines are replaced
+     */
+    static void clearEngineLocks() {
+        engineLocks.clear();
+    }
+
+    private static Lock getLock(CompressorEngine engine) {
+        Lock lock = engineLocks.get(engine);
+        if (lock == null) {
+            Lock created = new ReentrantLock();
+            lock = engineLocks.putIfAbsent(engine, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * The version of the given source file, which changes whenever the
+     * compressed output for the file would change
+     */
+    public long getFileVersion(File file) {
+        return getEngine(file).getLastModified(file);
+    }
+
+    /**
+     * Whether the bytes of the given file can be copied to the output as they
+     * are when the file is not being compressed
+     */
+    public boolean canPassThrough(File file) {
+        return getEngine(file).canPassThrough() && !needsProcessing(file);
+    }
+
+    /**
+     * Whether the file needs to be processed before it is added to the
+     * output, even when it is not being compressed, eg to include the files
+     * it imports
+     */
+    protected boolean needsProcessing(File file) {
+        return false;
+    }
+
+    /**
+     * Writes the file to the output without compressing it. This is used when
+     * the file could not be compressed in the time allowed, or compression
+     * failed.
+     */
+    public void writeFallback(File file, Writer out) throws IOException {
+        // If the source file is not in the output language (eg Less) it's no
+        // use in the output, so just leave a note
+        if (!getEngine(file).canPassThrough()) {
+            out.write("/* " + file.getName() + " could not be compiled in time */\n");
+            return;
+        }
+
+        writeUncompressed(file, out);
+    }
+
+    /**
+     * Writes the file to the output as it would be if it were not compressed
+     */
+    protected void writeUncompressed(File file, Writer out) throws IOException {
+        FileIO.write(FileIO.getReader(file), out);
+    }
+
+    protected CompressorEngine getEngine(File file) {
+        return CompressorEngines.get(file.getName(), extension);
+    }
+
+    /**
+     * Thrown when an engine that can only compress one file at a time is
+     * still busy with another file
+     */
+    @SuppressWarnings("serial")
+    public static class EngineBusyException extends TimeoutException {
+        EngineBusyException(CompressorEngine engine, long waitedMillis) {
+            super(engine.getClass().getSimpleName() + " was busy with another file for "
+                    + waitedMillis + " milli-seconds");
+        }
+    }
 
-    abstract public void compress(File file, Writer out, boolean compress) throws IOException;
-    
     protected static int clearCache(String compressedDir, String extension) {
         return CompressedFile.clearCache(compressedDir, extension);
     }
@@ -0,0 +1,36 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Compresses source files of a particular type, eg YUI for JavaScript.
+ * Engines are registered by file extension with {@link CompressorEngines}.
+ */
+public interface CompressorEngine {
+    /**
+     * Writes the content of the source file to the output, compressed if
+     * compress is true. Sources that are not in the output language (eg Less)
+     * must be compiled whether or not they are compressed.
+     */
+    void compress(File sourceFile, Writer out, boolean compress) throws IOException;
+
+    /**
+     * The latest last modified date of the source file and any files it
+     * depends on (eg files imported by a Less file)
+     */
+    long getLastModified(File sourceFile);
+
+    /**
+     * Whether the uncompressed output is the same as the source file, so that
+     * its bytes can be copied straight to the output
+     */
+    boolean canPassThrough();
+
+    /**
+     * Whether the engine can compress several files at the same time. If not,
+     * press makes sure only one file at a time is compressed by the engine.
+     */
+    boolean isThreadSafe();
+}
@@ -0,0 +1,85 @@
+package press;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import play.Play;
+import play.exceptions.ConfigurationException;
+
+/**
+ * The registry of compressor engines, by file extension.
+ * 
+ * The default engines can be replaced, or engines added for new file types,
+ * in application.conf, eg:
+ * press.engine.js=com.example.MyJavaScriptEngine
+ * press.engine.hbs=com.example.HandlebarsEngine
+ */
+public class CompressorEngines {
+    static final String CONFIG_PREFIX = "press.engine.";
+
+    private static final Map<String, CompressorEngine> engines =
+            new ConcurrentHashMap<String, CompressorEngine>();
+
+    /**
+     * Registers the default engines, then any engines in the configuration
+     */
+    public static void configure() {
+        engines.clear();
+        Compressor.clearEngineLocks();
+        register(ScriptCompressor.EXTENSION, new YuiScriptEngine());
+        register(StyleCompressor.EXTENSION, new YuiStyleEngine());
+        register(".less", new LessStyleEngine());
+        register(".jst", new JavaScriptTemplateEngine());
+
+        for (Object key : Play.configuration.keySet()) {
+            String configKey = key.toString();
+            if (configKey.startsWith(CONFIG_PREFIX)) {
+                String extension = "." + configKey.substring(CONFIG_PREFIX.length());
+                register(extension, createEngine(configKey, ConfigHelper.getString(configKey)));
+            }
+        }
+    }
+
+    public static void register(String extension, CompressorEngine engine) {
+        PressLogger.trace("Compressing %s files with %s", extension, engine.getClass().getName());
+        engines.put(extension.toLowerCase(), engine);
+    }
+
+    /**
+     * Gets the engine for the given file, or if there is no engine registered
+     * for its extension, the engine for the default extension
+     */
+    public static CompressorEngine get(String fileName, String defaultExtension) {
+        CompressorEngine engine = engines.get(getExtension(fileName));
+        if (engine == null) {
+            engine = engines.get(defaultExtension);
+        }
+        if (engine == null) {
+            throw new PressException("No compressor engine registered for " + fileName);
+        }
+        return engine;
+    }
+
+    static String getExtension(String fileName) {
+        int lastDot = fileName.lastIndexOf('.');
+        if (lastDot == -1) {
+            return "";
+        }
+        return fileName.substring(lastDot).toLowerCase();
+    }
+
+    private static CompressorEngine createEngine(String configKey, String className) {
+        try {
+            Class<?> engineClass = Play.classloader.loadClass(className.trim());
+            return (CompressorEngine) engineClass.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            // The class is fine, but its constructor failed
+            throw new ConfigurationException("Could not create " + className.trim() + ": "
+                    + e.getCause());
+        } catch (Exception e) {
+            throw new ConfigurationException(configKey + " must be the name of a class that "
+                    + "implements " + CompressorEngine.class.getName() + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import play.Play;
+import press.io.FileIO;
+import press.io.SourceFileMetadata;
+
+/**
+ * Resolves the @import rules in plain CSS files that refer to other local CSS
+ * files, so that the imported files can be included in the compressed file
+ * instead of being requested by the browser one after another.
+ */
+public class CssImports {
+    // eg @import "a.css"; @import url(a.css); @import url("a.css") screen;
+    static final Pattern IMPORT = Pattern.compile(
+            "@import\\s+(?:url\\(\\s*(['\"]?)([^'\"\\)]+)\\1\\s*\\)|(['\"])([^'\"]+)\\3)"
+                    + "\\s*([^;]*);",
+            Pattern.CASE_INSENSITIVE);
+
+    static final Pattern CHARSET = Pattern.compile("@charset\\s+['\"][^'\"]*['\"]\\s*;",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * An @import rule that refers to a local CSS file
+     */
+    static class Import {
+        // The position of the rule in the importing file
+        final int start;
+        final int end;
+        final File file;
+
+        // The media queries the import applies to, or an empty string
+        final String media;
+
+        Import(int start, int end, File file, String media) {
+            this.start = start;
+            this.end = end;
+            this.file = file;
+            this.media = media;
+        }
+    }
+
+    static class ParsedFile {
+        final long lastModified;
+        final List<Import> imports;
+
+        ParsedFile(long lastModified, List<Import> imports) {
+            this.lastModified = lastModified;
+            this.imports = imports;
+        }
+    }
+
+    // Maps the absolute path of a CSS file to its local imports
+    private static final ConcurrentMap<String, ParsedFile> parsedFiles =
+            new ConcurrentHashMap<String, ParsedFile>();
+
+    /**
+     * Whether the file imports any local CSS files
+     */
+    public static boolean hasLocalImports(File file) {
+        return !isLess(file) && !getImports(file).isEmpty();
+    }
+
+    /**
+     * Whether the content of the file must go through {@link #flatten(File)}
+     * before it is added to the output, because it imports local CSS files or
+     * has urls that must be rewritten
+     */
+    public static boolean needsProcessing(File file) {
+        return hasLocalImports(file) || !isLess(file) && CssUrls.needsRewriting(file);
+    }
+
+    /**
+     * Returns the latest of the last modified dates of the file and all the
+     * local files it imports, directly or indirectly, and the assets whose
+     * urls are rewritten in them
+     */
+    public static long latestModified(File file) {
+        long lastModified = SourceFileMetadata.lastModified(file);
+        if (isLess(file)) {
+            return lastModified;
+        }
+
+        Set<String> visited = new HashSet<String>();
+        return latestModified(file, lastModified, visited);
+    }
+
+    private static long latestModified(File file, long lastModified, Set<String> visited) {
+        if (!visited.add(file.getAbsolutePath())) {
+            return lastModified;
+        }
+
+        lastModified = Math.max(lastModified, CssUrls.latestModified(file));
+
+        for (Import imported : getImports(file)) {
+            lastModified = Math.max(lastModified, SourceFileMetadata.lastModified(imported.file));
+            lastModified = latestModified(imported.file, lastModified, visited);
+        }
+        return lastModified;
+    }
+
+    /**
+     * Gets the content of the file with each local @import rule replaced by
+     * the content of the imported file, wrapped in an @media block if the
+     * import was for particular media. A file that has already been included
+     * in the compressed file being written is not included again. The urls
+     * in each file are rewritten relative to that file, see {@link CssUrls}.
+     */
+    public static String flatten(File file) throws IOException {
+        BundleContext context = BundleContext.current();
+        Set<String> stack = new HashSet<String>();
+        return flatten(file, readFile(file), context, new HashSet<String>(), stack);
+    }
+
+    private static String flatten(File file, String css, BundleContext context,
+            Set<String> included, Set<String> stack) throws IOException {
+        List<Import> imports = getImports(file);
+        if (imports.isEmpty()) {
+            return CssUrls.rewrite(file, css);
+        }
+
+        stack.add(file.getAbsolutePath());
+        StringBuilder out = new StringBuilder(css.length() * 2);
+        int position = 0;
+        for (Import imported : imports) {
+            out.append(CssUrls.rewrite(file, css.substring(position, imported.start)));
+            position = imported.end;
+
+            String path = imported.file.getAbsolutePath();
+            boolean alreadyIncluded = context == null ? !included.add(path) : !context
+                    .include(imported.file);
+            if (alreadyIncluded || stack.contains(path)) {
+                PressLogger.trace("Skipping repeated import of %s in %s", imported.file.getName(),
+                        file.getName());
+                continue;
+            }
+
+            String importedCss = flatten(imported.file, readFile(imported.file), context,
+                    included, stack);
+
+            // @charset is only allowed at the very start of a stylesheet
+            importedCss = CHARSET.matcher(importedCss).replaceAll("");
+            if (imported.media.length() > 0) {
+                out.append("@media ").append(imported.media).append(" {\n").append(importedCss)
+                        .append("\n}\n");
+            } else {
+                out.append(importedCss).append('\n');
+            }
+        }
+        out.append(CssUrls.rewrite(file, css.substring(position)));
+        stack.remove(file.getAbsolutePath());
+
+        return out.toString();
+    }
+
+    static List<Import> getImports(File file) {
+        String path = file.getAbsolutePath();
+        long lastModified = SourceFileMetadata.lastModified(file);
+        ParsedFile parsed = parsedFiles.get(path);
+        if (parsed != null && parsed.lastModified == lastModified) {
+            return parsed.imports;
+        }
+
+        List<Import> imports;
+        try {
+            imports = parseImports(file, readFile(file));
+        } catch (IOException e) {
+            imports = Collections.emptyList();
+        }
+        parsedFiles.put(path, new ParsedFile(lastModified, imports));
+        return imports;
+    }
+
+    static List<Import> parseImports(File file, String css) {
+        List<Import> imports = new ArrayList<Import>();
+        Matcher matcher = IMPORT.matcher(css);
+        while (matcher.find()) {
+            String url = matcher.group(2) != null ? matcher.group(2) : matcher.group(4);
+            File imported = resolve(file, url.trim());
+            if (imported != null) {
+                imports.add(new Import(matcher.start(), matcher.end(), imported, matcher.group(5)
+                        .trim()));
+            }
+        }
+
+        if (imports.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return imports;
+    }
+
+    /**
+     * Gets the local CSS file the url refers to, or null if it doesn't refer
+     * to one
+     */
+    static File resolve(File importingFile, String url) {
+        String lcUrl = url.toLowerCase();
+        if (lcUrl.startsWith("http:") || lcUrl.startsWith("https:") || lcUrl.startsWith("//")
+                || lcUrl.startsWith("data:")) {
+            return null;
+        }
+
+        // Ignore any query string or fragment
+        int end = url.length();
+        for (char c : new char[] { '?', '#' }) {
+            int index = url.indexOf(c);
+            if (index != -1) {
+                end = Math.min(end, index);
+            }
+        }
+        url = url.substring(0, end);
+        if (!url.toLowerCase().endsWith(".css")) {
+            return null;
+        }
+
+        File file;
+        if (url.startsWith("/")) {
+            file = new File(Play.applicationPath, url);
+        } else {
+            file = new File(importingFile.getParentFile(), url);
+        }
+
+        // Remove any "../" so that the same file always has the same path
+        file = new File(file.toURI().normalize());
+
+        SourceFileMetadata metadata = SourceFileMetadata.get(file);
+        if (!metadata.exists()) {
+            return null;
+        }
+        return metadata.file;
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = FileIO.getReader(file);
+        try {
+            return IOUtils.toString(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isLess(File file) {
+        return StyleCompressor.isLess(file.getName());
+    }
+
+    public static void clearCache() {
+        parsedFiles.clear();
+    }
+}
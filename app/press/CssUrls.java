@@ -0,0 +1,190 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import play.Play;
+import press.io.FileIO;
+import press.io.SourceFileMetadata;
+
+/**
+ * Rewrites the url() references in stylesheets to local assets (eg images
+ * and fonts), which are relative to the stylesheet, to fingerprinted urls
+ * that are valid wherever the compressed file is served from and can be
+ * cached by the browser indefinitely. Small assets can instead be included
+ * as data uris, see {@link DataUris}.
+ */
+public class CssUrls {
+    // eg url(a.png), url('a.png'), url("a.png")
+    static final Pattern URL = Pattern.compile("url\\(\\s*(['\"]?)([^'\"\\)]+)\\1\\s*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    static class ParsedFile {
+        final long lastModified;
+        final List<File> assets;
+
+        ParsedFile(long lastModified, List<File> assets) {
+            this.lastModified = lastModified;
+            this.assets = assets;
+        }
+    }
+
+    // Maps the absolute path of a stylesheet to the assets it references
+    private static final ConcurrentMap<String, ParsedFile> parsedFiles =
+            new ConcurrentHashMap<String, ParsedFile>();
+
+    public static boolean isEnabled() {
+        return PluginConfig.css.rewriteUrls || DataUris.isEnabled();
+    }
+
+    /**
+     * Whether the stylesheet references any local assets that need their
+     * urls rewritten
+     */
+    public static boolean needsRewriting(File cssFile) {
+        return isEnabled() && !getAssets(cssFile).isEmpty();
+    }
+
+    /**
+     * Returns the latest of the last modified dates of the assets referenced
+     * by the stylesheet, or zero if it references none
+     */
+    public static long latestModified(File cssFile) {
+        long lastModified = 0;
+        if (isEnabled()) {
+            for (File asset : getAssets(cssFile)) {
+                lastModified = Math.max(lastModified, SourceFileMetadata.lastModified(asset));
+            }
+        }
+        return lastModified;
+    }
+
+    /**
+     * Rewrites the urls of local assets in the given CSS, which is from the
+     * given stylesheet
+     */
+    public static String rewrite(File cssFile, String css) {
+        if (!isEnabled() || css.indexOf("url(") == -1 && css.indexOf("URL(") == -1) {
+            return css;
+        }
+
+        Matcher matcher = URL.matcher(css);
+        StringBuffer out = new StringBuffer(css.length() + 256);
+        while (matcher.find()) {
+            String url = matcher.group(2).trim();
+            File asset = resolve(cssFile, url);
+            String replacement = matcher.group();
+            if (asset != null) {
+                // A fragment may refer to part of the asset, eg an SVG sprite,
+                // so only assets referred to as a whole are encoded
+                String suffix = getSuffix(url);
+                String dataUri = null;
+                if (DataUris.isEnabled() && suffix.length() == 0) {
+                    dataUri = DataUris.get(asset);
+                }
+
+                if (dataUri != null) {
+                    replacement = "url(" + dataUri + ")";
+                } else if (PluginConfig.css.rewriteUrls) {
+                    replacement = "url(" + AssetFingerprints.getUrl(asset) + suffix + ")";
+                }
+            }
+            matcher.appendReplacement(out, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(out);
+
+        return out.toString();
+    }
+
+    static List<File> getAssets(File cssFile) {
+        String path = cssFile.getAbsolutePath();
+        long lastModified = SourceFileMetadata.lastModified(cssFile);
+        ParsedFile parsed = parsedFiles.get(path);
+        if (parsed != null && parsed.lastModified == lastModified) {
+            return parsed.assets;
+        }
+
+        List<File> assets = new ArrayList<File>();
+        try {
+            Matcher matcher = URL.matcher(readFile(cssFile));
+            while (matcher.find()) {
+                File asset = resolve(cssFile, matcher.group(2).trim());
+                if (asset != null && !assets.contains(asset)) {
+                    assets.add(asset);
+                }
+            }
+        } catch (IOException e) {
+            assets.clear();
+        }
+
+        if (assets.isEmpty()) {
+            assets = Collections.emptyList();
+        }
+        parsedFiles.put(path, new ParsedFile(lastModified, assets));
+        return assets;
+    }
+
+    /**
+     * Gets the local asset the url refers to, or null if it doesn't refer to
+     * an asset in the public directory
+     */
+    static File resolve(File cssFile, String url) {
+        String lcUrl = url.toLowerCase();
+        if (lcUrl.startsWith("http:") || lcUrl.startsWith("https:") || lcUrl.startsWith("//")
+                || lcUrl.startsWith("data:") || lcUrl.startsWith("#")) {
+            return null;
+        }
+
+        String path = url.substring(0, url.length() - getSuffix(url).length());
+        if (path.length() == 0 || path.toLowerCase().endsWith(".css")) {
+            return null;
+        }
+
+        File asset;
+        if (path.startsWith("/")) {
+            asset = new File(Play.applicationPath, path);
+        } else {
+            asset = new File(cssFile.getParentFile(), path);
+        }
+        asset = new File(asset.toURI().normalize());
+
+        return AssetFingerprints.isPublic(asset) ? asset : null;
+    }
+
+    /**
+     * Gets the query string and fragment of the url, eg "?#iefix"
+     */
+    static String getSuffix(String url) {
+        int end = url.length();
+        for (char c : new char[] { '?', '#' }) {
+            int index = url.indexOf(c);
+            if (index != -1) {
+                end = Math.min(end, index);
+            }
+        }
+        return url.substring(end);
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = FileIO.getReader(file);
+        try {
+            return IOUtils.toString(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static void clearCache() {
+        parsedFiles.clear();
+    }
+}
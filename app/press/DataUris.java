@@ -0,0 +1,97 @@
+package press;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+
+import play.exceptions.UnexpectedException;
+import play.libs.Codec;
+import play.libs.MimeTypes;
+import press.io.SourceFileMetadata;
+
+/**
+ * Encodes small assets referenced from stylesheets as data uris, so that
+ * they are included in the compressed file rather than requested one by one.
+ */
+public class DataUris {
+    static class Encoded {
+        final long lastModified;
+
+        // The data uri, or null if the asset is too big
+        final String uri;
+
+        Encoded(long lastModified, String uri) {
+            this.lastModified = lastModified;
+            this.uri = uri;
+        }
+    }
+
+    // Maps the absolute path of the asset to its encoded content
+    private static final ConcurrentMap<String, Encoded> encoded =
+            new ConcurrentHashMap<String, Encoded>();
+
+    public static boolean isEnabled() {
+        return PluginConfig.css.dataUriMaxBytes > 0;
+    }
+
+    /**
+     * Gets the data uri for the asset, or null if the asset is too big, or
+     * the compressed file being written already contains as much encoded
+     * data as it is allowed
+     */
+    public static String get(File asset) {
+        String uri = getEncoded(asset);
+        if (uri == null) {
+            return null;
+        }
+
+        BundleContext context = BundleContext.current();
+        if (context != null && !context.reserveDataUriBytes(uri.length())) {
+            PressLogger.trace("Not encoding %s as a data uri, the compressed file is full",
+                    asset.getName());
+            return null;
+        }
+        return uri;
+    }
+
+    private static String getEncoded(File asset) {
+        long lastModified = SourceFileMetadata.lastModified(asset);
+        Encoded current = encoded.get(asset.getAbsolutePath());
+        if (current == null || current.lastModified != lastModified) {
+            current = new Encoded(lastModified, encode(asset));
+            encoded.put(asset.getAbsolutePath(), current);
+        }
+        return current.uri;
+    }
+
+    private static String encode(File asset) {
+        if (asset.length() > PluginConfig.css.dataUriMaxBytes) {
+            return null;
+        }
+
+        try {
+            InputStream in = new FileInputStream(asset);
+            byte[] content;
+            try {
+                content = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+
+            String contentType = MimeTypes.getContentType(asset.getName(),
+                    "application/octet-stream");
+            return "data:" + contentType + ";base64," + Codec.encodeBASE64(content);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    public static void clear() {
+        encoded.clear();
+    }
+}
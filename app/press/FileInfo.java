@@ -9,20 +9,34 @@ import java.util.List;
 import java.util.Map;
 
 import play.vfs.VirtualFile;
+import press.io.SourceFileMetadata;
 
 public class FileInfo implements Serializable {
+    // Lists of files are kept in the cache, which may be shared by servers
+    // running different builds, so the version is fixed rather than derived
+    // from the compiled class
+    private static final long serialVersionUID = 1L;
+
     boolean compress;
+
+    // If true, the file is not compressed if it appears to be minified already
+    boolean detectMinified;
     public File file;
 
     public FileInfo(boolean compress, VirtualFile file) {
+        this(compress, false, file);
+    }
+
+    public FileInfo(boolean compress, boolean detectMinified, VirtualFile file) {
         this.compress = compress;
+        this.detectMinified = detectMinified;
         // We store the File instead of a VirtualFile so that this class can be
         // serialized
         this.file = file == null ? null : file.getRealFile();
     }
 
     public long getLastModified() {
-        return file.lastModified();
+        return SourceFileMetadata.lastModified(file);
     }
 
     public static List<File> getFiles(List<FileInfo> fileInfos) {
@@ -36,7 +50,7 @@ public class FileInfo implements Serializable {
     public static Map<String, Long> getFileLastModifieds(List<FileInfo> fileInfos) {
         Map<String, Long> files = new HashMap<String, Long>();
         for (FileInfo info : fileInfos) {
-            files.put(info.file.getAbsolutePath(), info.file.lastModified());
+            files.put(info.file.getAbsolutePath(), info.getLastModified());
         }
         return files;
     }
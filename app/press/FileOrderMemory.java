@@ -0,0 +1,82 @@
+package press;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.templates.BaseTemplate;
+import play.templates.Template;
+
+/**
+ * Remembers the order in which files appeared in the response, relative to
+ * the order in which their tags were executed, for each combination of
+ * templates and files. When a page is rendered again with the same templates
+ * and the same files, the order is known without scanning the response.
+ */
+public class FileOrderMemory {
+    // The number of orders remembered before they are all forgotten, in case
+    // the application adds files dynamically
+    static final int MAX_ORDERS = 2000;
+
+    // Maps a description of the templates and the files added, in execution
+    // order, to the output position of each file
+    private static final ConcurrentMap<String, int[]> orders =
+            new ConcurrentHashMap<String, int[]>();
+
+    /**
+     * Appends the name of the file to the key, preceded by the templates
+     * being rendered if they have changed since the last file was added
+     */
+    static void appendToKey(StringBuilder key, String lastTemplates, String templates,
+            String fileName) {
+        if (!templates.equals(lastTemplates)) {
+            key.append('@').append(templates).append('\n');
+        }
+        key.append(fileName).append('\n');
+    }
+
+    /**
+     * Describes the template being rendered and its layout
+     */
+    static String getTemplates() {
+        Template current = BaseTemplate.currentTemplate.get();
+        Template layout = BaseTemplate.layout.get();
+        String currentName = current == null ? "" : current.name;
+        if (layout == null) {
+            return currentName;
+        }
+        return currentName + "<" + layout.name;
+    }
+
+    /**
+     * Gets the output order remembered for the given key, or null if it is
+     * not known. Each element is the index, in execution order, of the file
+     * at that position in the output.
+     */
+    static int[] get(String key) {
+        return orders.get(key);
+    }
+
+    /**
+     * Remembers the output order of the given files
+     */
+    static void put(String key, List<String> executionOrder, List<String> outputOrder) {
+        int[] order = new int[outputOrder.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = executionOrder.indexOf(outputOrder.get(i));
+            if (order[i] == -1) {
+                return;
+            }
+        }
+
+        if (orders.size() >= MAX_ORDERS) {
+            PressLogger.trace("Forgetting %d remembered file orders", orders.size());
+            orders.clear();
+        }
+        orders.put(key, order);
+    }
+
+    public static void clear() {
+        orders.clear();
+    }
+}
@@ -0,0 +1,111 @@
+package press;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+
+import play.Logger;
+import play.exceptions.UnexpectedException;
+import press.io.CompressedFile;
+
+/**
+ * Keeps the markup for bundles that are small enough to be included in the
+ * page itself, rather than with a link to the compressed file, by request
+ * key.
+ */
+public class InlineBundles {
+    // The number of bundles remembered before they are all forgotten
+    static final int MAX_BUNDLES = 2000;
+
+    // Marks a bundle that is too big to be inlined
+    private static final byte[] NOT_INLINED = new byte[0];
+
+    // Marks a bundle that is not inlined this time, but may be next time
+    private static final byte[] NOT_YET_INLINED = new byte[0];
+
+    private static final ConcurrentMap<String, byte[]> tags =
+            new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Gets the markup that includes the content of the bundle in the page,
+     * generating the compressed file if necessary
+     * 
+     * @param start
+     *            the opening tag, eg "<script type=\"text/javascript\">"
+     * @param end
+     *            the closing tag, eg "</script>"
+     * @return the markup in UTF-8, or null if the bundle should not be
+     *         inlined
+     */
+    static byte[] get(String requestKey, List<FileInfo> fileList,
+            CompressedFileManager compressedFileManager, String start, String end) {
+        byte[] tag = tags.get(requestKey);
+        if (tag == null) {
+            try {
+                tag = createTag(fileList, compressedFileManager, start, end);
+            } catch (PressException e) {
+                // Let the browser request the compressed file instead
+                Logger.warn(e, "Press: Could not inline compressed file %s", requestKey);
+                return null;
+            }
+
+            if (tag == NOT_YET_INLINED) {
+                return null;
+            }
+
+            if (!PluginConfig.cache.equals(CachingStrategy.Never)) {
+                if (tags.size() >= MAX_BUNDLES) {
+                    tags.clear();
+                }
+                tags.put(requestKey, tag);
+            }
+        }
+
+        return tag == NOT_INLINED ? null : tag;
+    }
+
+    private static byte[] createTag(List<FileInfo> fileList,
+            CompressedFileManager compressedFileManager, String start, String end) {
+        CompressedFile compressedFile = compressedFileManager.getCompressedFile(fileList);
+        if (compressedFile == null || compressedFile.length() > PluginConfig.inlineMaxBytes) {
+            return NOT_INLINED;
+        }
+
+        // Output with files that there was no time to compress is not put in
+        // the page, as the page may be cached. The browser requests the
+        // compressed file instead, by which time it may be complete.
+        if (!compressedFile.isComplete()) {
+            return NOT_YET_INLINED;
+        }
+
+        try {
+            InputStream in = compressedFile.inputStream();
+            String content;
+            try {
+                content = IOUtils.toString(in, "utf-8");
+            } finally {
+                in.close();
+            }
+
+            // The content can't contain the closing tag, or the browser would
+            // think the block ends there
+            String closingTag = end.trim().toLowerCase();
+            if (content.toLowerCase().contains(closingTag.substring(0, closingTag.length() - 1))) {
+                return NOT_INLINED;
+            }
+
+            PressLogger.trace("Inlining %d bytes of compressed output", content.length());
+            return (start + content + end).getBytes("utf-8");
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    public static void clear() {
+        tags.clear();
+    }
+}
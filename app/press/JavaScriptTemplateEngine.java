@@ -0,0 +1,97 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import play.Play;
+import press.io.FileIO;
+import press.io.SourceFileMetadata;
+
+/**
+ * Compiles a client-side template file into JavaScript that stores the
+ * template text in the global JST object, keyed by the path of the file
+ * relative to the JavaScript source directory, without the extension.
+ * 
+ * eg the content of /public/javascripts/widgets/row.jst is available to
+ * scripts as JST["widgets/row"]
+ */
+public class JavaScriptTemplateEngine implements CompressorEngine {
+
+    public void compress(File sourceFile, Writer out, boolean compress) throws IOException {
+        StringWriter template = new StringWriter();
+        FileIO.write(FileIO.getReader(sourceFile), template);
+
+        out.write("window.JST=window.JST||{};window.JST[\"");
+        out.write(escape(getTemplateName(sourceFile)));
+        out.write("\"]=\"");
+        out.write(escape(template.toString()));
+        out.write("\";\n");
+    }
+
+    static String getTemplateName(File sourceFile) {
+        String path = sourceFile.getAbsolutePath().replace(File.separatorChar, '/');
+        String srcDir = Play.getFile(PluginConfig.js.srcDir).getAbsolutePath().replace(
+                File.separatorChar, '/');
+        srcDir = PluginConfig.addTrailingSlash(srcDir);
+
+        String name = path.startsWith(srcDir) ? path.substring(srcDir.length()) : sourceFile
+                .getName();
+        int lastDot = name.lastIndexOf('.');
+        return lastDot > name.lastIndexOf('/') ? name.substring(0, lastDot) : name;
+    }
+
+    /**
+     * Escapes the text for use in a double quoted JavaScript string
+     */
+    static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '"':
+                escaped.append("\\\"");
+                break;
+            case '\\':
+                escaped.append("\\\\");
+                break;
+            case '\n':
+                escaped.append("\\n");
+                break;
+            case '\r':
+                escaped.append("\\r");
+                break;
+            case '\t':
+                escaped.append("\\t");
+                break;
+            case '\u2028':
+                escaped.append("\\u2028");
+                break;
+            case '\u2029':
+                escaped.append("\\u2029");
+                break;
+            case '/':
+                // Prevents "</script>" from ending an inline script block
+                boolean afterLessThan = i > 0 && text.charAt(i - 1) == '<';
+                escaped.append(afterLessThan ? "\\/" : "/");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    public long getLastModified(File sourceFile) {
+        return SourceFileMetadata.lastModified(sourceFile);
+    }
+
+    public boolean canPassThrough() {
+        return false;
+    }
+
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
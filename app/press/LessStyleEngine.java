@@ -0,0 +1,40 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+
+import press.io.SourceFileMetadata;
+
+/**
+ * Compiles Less to CSS, then compresses the CSS with the YUI compressor
+ */
+public class LessStyleEngine implements CompressorEngine {
+
+    public void compress(File sourceFile, Writer out, boolean compress) throws IOException {
+        // Note that the compress parameter doesn't actually seem to do
+        // much here, not sure why
+        String css = StyleCompressor.lessEngine.get(sourceFile, compress);
+        YuiStyleEngine.compress(new StringReader(css), out, compress);
+    }
+
+    public long getLastModified(File sourceFile) {
+        // A less file's output also changes when any file it imports changes
+        SourceFileMetadata metadata = SourceFileMetadata.get(sourceFile);
+        if (!metadata.exists()) {
+            return metadata.getLastModified();
+        }
+        return PlayLessEngine.latestModified(sourceFile);
+    }
+
+    public boolean canPassThrough() {
+        // Less files must always be compiled
+        return false;
+    }
+
+    public boolean isThreadSafe() {
+        // The Less engine shares a single JavaScript scope
+        return false;
+    }
+}
@@ -0,0 +1,135 @@
+package press;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import press.io.SourceFileMetadata;
+
+/**
+ * Detects source files that are already minified, so that they can be added
+ * to compressed output without being compressed again, even if the template
+ * doesn't say compress: false.
+ */
+public class MinifiedFileDetector {
+    // eg jquery.min.js, jquery-min.js, reset.min.css
+    static final Pattern MINIFIED_NAME = Pattern.compile(".*[.-]min\\.(js|css)$",
+            Pattern.CASE_INSENSITIVE);
+
+    // The number of bytes at the start of the file that are examined
+    static final int SAMPLE_SIZE = 4096;
+
+    // Files smaller than this are cheap to compress, so don't bother guessing
+    static final int MIN_SAMPLE_SIZE = 512;
+
+    // The average line length above which a file is considered minified
+    static final int MIN_AVERAGE_LINE_LENGTH = 200;
+
+    // The proportion of whitespace below which a file is considered minified
+    static final double MAX_WHITESPACE_RATIO = 0.05;
+
+    static class Detection {
+        final long lastModified;
+        final boolean minified;
+
+        Detection(long lastModified, boolean minified) {
+            this.lastModified = lastModified;
+            this.minified = minified;
+        }
+    }
+
+    // Maps the absolute path of the file to the result of detection for the
+    // version of the file with the given last modified date
+    private static final Map<String, Detection> detections =
+            new ConcurrentHashMap<String, Detection>();
+
+    public static boolean isMinified(File file) {
+        String path = file.getAbsolutePath();
+        long lastModified = SourceFileMetadata.lastModified(file);
+        Detection detection = detections.get(path);
+        if (detection != null && detection.lastModified == lastModified) {
+            return detection.minified;
+        }
+
+        boolean minified = detect(file);
+        detections.put(path, new Detection(lastModified, minified));
+        if (minified) {
+            PressLogger.trace("%s appears to be minified already", file.getName());
+        }
+        return minified;
+    }
+
+    public static void clearCache() {
+        detections.clear();
+    }
+
+    static boolean detect(File file) {
+        String fileName = file.getName();
+        if (StyleCompressor.isLess(fileName)) {
+            return false;
+        }
+
+        if (MINIFIED_NAME.matcher(fileName).matches()) {
+            return true;
+        }
+
+        // Output of press itself, eg from a compressed directory
+        if (PressFileWriter.hasPressHeader(file)) {
+            return true;
+        }
+
+        try {
+            return looksMinified(readSample(file));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Minified code has very long lines and very little whitespace
+     */
+    static boolean looksMinified(byte[] sample) {
+        if (sample.length < MIN_SAMPLE_SIZE) {
+            return false;
+        }
+
+        int lines = 1;
+        int whitespace = 0;
+        for (byte b : sample) {
+            if (b == '\n') {
+                lines++;
+                whitespace++;
+            } else if (b == ' ' || b == '\t' || b == '\r') {
+                whitespace++;
+            }
+        }
+
+        if (sample.length / lines > MIN_AVERAGE_LINE_LENGTH) {
+            return true;
+        }
+        return (double) whitespace / sample.length < MAX_WHITESPACE_RATIO;
+    }
+
+    private static byte[] readSample(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[SAMPLE_SIZE];
+            int length = 0;
+            int read;
+            while (length < buffer.length
+                    && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+
+            byte[] sample = new byte[length];
+            System.arraycopy(buffer, 0, sample, 0, length);
+            return sample;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package press;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import play.Logger;
+import play.mvc.Router;
+import press.io.CompressedFile;
+import press.io.ContentDigest;
+
+/**
+ * Gets compressed files from the other servers in the pool instead of
+ * generating them, so that after a deploy each compressed file is generated
+ * once for the whole pool rather than once per server.
+ * 
+ * Compressed files are shared by content key, which is the same on every
+ * server with the same source files, whatever their last modified dates.
+ * Each server keeps a copy of the compressed files it has under their
+ * content key, and serves them to the others. Compressed files with fallback
+ * output in them are not kept under their content key, so they are never
+ * served to the others.
+ */
+public class PeerFiles {
+    // eg 3f2a9c01b4de6d27e0f5a8c1b2d3e4f5.js
+    static final Pattern CONTENT_KEY = Pattern.compile("[0-9a-f]{32}\\.[a-z]+");
+
+    public static boolean isEnabled() {
+        return PluginConfig.peers.length > 0 && PluginConfig.cache != CachingStrategy.Never;
+    }
+
+    public static boolean isContentKey(String key) {
+        return CONTENT_KEY.matcher(key).matches();
+    }
+
+    /**
+     * Looks for a compressed file with the given content key, first in this
+     * server's stores, eg if only the dates of the source files have changed,
+     * then on the other servers, and if one is found writes it to the given
+     * file
+     * 
+     * @return false if there is no compressed file with the content key
+     */
+    public static boolean fetch(String contentKey, CompressedFile file, String compressedDir) {
+        CompressedFile local = CompressedFile.create(contentKey, compressedDir);
+        if (local.exists()) {
+            try {
+                PressLogger.trace("Using stored compressed file %s for %s", contentKey,
+                        file.getFileKey());
+                file.copyFrom(local);
+                return true;
+            } catch (IOException e) {
+                Logger.warn(e, "Press: Could not copy compressed file %s", contentKey);
+            }
+        }
+
+        for (String peer : PluginConfig.peers) {
+            byte[] content = fetchFromPeer(peer, contentKey);
+            if (content != null) {
+                PressLogger.trace("Got compressed file %s from %s", contentKey, peer);
+                write(file, content);
+                register(contentKey, file, compressedDir);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps a copy of the compressed file under its content key, so that it
+     * can be served to other servers
+     */
+    public static void register(String contentKey, CompressedFile file, String compressedDir) {
+        try {
+            CompressedFile.create(contentKey, compressedDir).copyFrom(file);
+        } catch (Exception e) {
+            Logger.warn(e, "Press: Could not store compressed file %s for other servers",
+                    contentKey);
+        }
+    }
+
+    private static void write(CompressedFile file, byte[] content) {
+        // If the file is being written by another thread, startWrite() will
+        // block until it is complete and then return null
+        Writer writer = file.startWrite();
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.write(new String(content, "utf-8"));
+        } catch (IOException e) {
+            throw new PressException(e);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Gets the compressed file with the given content key from the server,
+     * giving up quickly if the server is slow or unavailable
+     * 
+     * @return the content, or null if the server doesn't have it
+     */
+    private static byte[] fetchFromPeer(String peer, String contentKey) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(peer + getPeerPath(contentKey))
+                    .openConnection();
+            connection.setConnectTimeout(PluginConfig.peerTimeoutMillis);
+            connection.setReadTimeout(PluginConfig.peerTimeoutMillis);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+
+            byte[] content;
+            InputStream in = connection.getInputStream();
+            try {
+                content = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+
+            // Make sure the whole file arrived
+            String etag = "\"" + ContentDigest.of(content) + "\"";
+            if (!etag.equals(connection.getHeaderField("ETag"))) {
+                Logger.warn("Press: Compressed file %s from %s does not match its ETag",
+                        contentKey, peer);
+                return null;
+            }
+            return content;
+        } catch (IOException e) {
+            PressLogger.trace("Could not get compressed file %s from %s: %s", contentKey, peer,
+                    e.getMessage());
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static String getPeerPath(String contentKey) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("key", contentKey);
+        return Router.reverse("press.Press.getPeerFile", params).url;
+    }
+}
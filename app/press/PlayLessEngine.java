@@ -39,9 +39,17 @@ public class PlayLessEngine {
      * Get the CSS for this less file either from the cache, or compile it.
      */
     public String get(File lessFile, boolean compress) {
-        String cacheKey = "less_" + lessFile.getPath() + latestModified(lessFile);
+        long lastModified = latestModified(lessFile);
+        String cacheKey = "less_" + lessFile.getPath() + lastModified;
         String css = cacheGet(cacheKey, String.class);
         if (css == null) {
+            // If this version of the file has already failed to compile,
+            // don't compile it again, just return the error
+            CompressionFailures.Failure failure = CompressionFailures.get(lessFile, lastModified);
+            if (failure != null && failure.fallbackOutput != null) {
+                return failure.fallbackOutput;
+            }
+
             css = compile(lessFile, compress);
             cacheSet(cacheKey, css);
         }
@@ -128,7 +136,9 @@ public class PlayLessEngine {
             // There seems to be a bug whereby \n's are sometimes escaped
             return css.replace("\\n", "\n");
         } catch (LessException e) {
-            return handleException(lessFile, e);
+            String css = handleException(lessFile, e);
+            CompressionFailures.record(lessFile, latestModified(lessFile), e.getMessage(), css);
+            return css;
         }
     }
 
@@ -6,6 +6,10 @@ import play.PlayPlugin;
 import play.mvc.Http.Request;
 import play.mvc.Http.Response;
 import play.vfs.VirtualFile;
+import press.io.CompressedFileStores;
+import press.io.CompressedFileSweeper;
+import press.io.SourceFileIndex;
+import press.io.SourceFileMetadata;
 
 public class Plugin extends PlayPlugin {
     static ThreadLocal<RequestManager> rqManager = new ThreadLocal<RequestManager>();
@@ -16,17 +20,57 @@ public class Plugin extends PlayPlugin {
         // Read the config each time the application is restarted
         PluginConfig.readConfig();
 
+        // Set up the engines used to compress each type of file
+        CompressorEngines.configure();
+        CompressedFileStores.configure();
+        RequestManager.configure();
+
         // Clear the asset cache
         RequestManager.clearCache();
+
+        // The source directories will be indexed again when they're next used
+        SourceFileIndex.clear();
+        SourceFileMetadata.clear();
+        FileOrderMemory.clear();
+
+        // Forget about files that failed or took too long to compress, they
+        // may have changed
+        CompressionTimeouts.clear();
+        CompressionFailures.clear();
+        MinifiedFileDetector.clearCache();
+        CssImports.clearCache();
+        CssUrls.clearCache();
+        AssetFingerprints.clear();
+        DataUris.clear();
+
+        // Restart the compression threads
+        CompressionScheduler.start();
+        CompressedFileSweeper.start();
         
         // Recreate the asset manager
         assetManager = new StaticAssetManager();
     }
 
+    @Override
+    public void onApplicationStop() {
+        CompressionScheduler.stop();
+        CompressedFileSweeper.stop();
+    }
+
     @Override
     public void beforeActionInvocation(Method actionMethod) {
-        // Before each action, reinitialize variables
-        rqManager.set(new RequestManager());
+        // Before each action, reinitialize variables. The request manager is
+        // only created if the action renders a press tag.
+        rqManager.remove();
+    }
+
+    static RequestManager getRequestManager() {
+        RequestManager manager = rqManager.get();
+        if (manager == null) {
+            manager = new RequestManager();
+            rqManager.set(manager);
+        }
+        return manager;
     }
 
     @Override
@@ -38,44 +82,91 @@ public class Plugin extends PlayPlugin {
      * Add a single JS file to compression
      */
     public static String addSingleJS(String fileName) {
-        return rqManager.get().addSingleFile(RequestManager.RQ_TYPE_SCRIPT, fileName);
+        return getRequestManager().addSingleFile(RequestManager.RQ_TYPE_SCRIPT, fileName);
     }
 
     /**
      * Add a single CSS file to compression
      */
     public static String addSingleCSS(String fileName) {
-        return rqManager.get().addSingleFile(RequestManager.RQ_TYPE_STYLE, fileName);
+        return getRequestManager().addSingleFile(RequestManager.RQ_TYPE_STYLE, fileName);
     }
 
     /**
      * Adds the given source file(s) to the JS compressor, returning the file
-     * signature to be output in HTML
+     * signature to be output in HTML. If packFile is null, files are
+     * compressed unless they appear to be minified already.
      */
-    public static String addJS(String src, boolean packFile) {
-        return rqManager.get().addMultiFile(RequestManager.RQ_TYPE_SCRIPT, src, packFile);
+    public static String addJS(String src, Boolean packFile) {
+        return addJS(src, packFile, null);
+    }
+
+    /**
+     * Adds the given source file(s) to the named JS bundle. If bundle is
+     * null, the files are added to the default bundle.
+     */
+    public static String addJS(String src, Boolean packFile, String bundle) {
+        return getRequestManager().addMultiFile(RequestManager.RQ_TYPE_SCRIPT, src, packFile,
+                bundle);
     }
 
     /**
      * Adds the given source file(s) to the CSS compressor, returning the file
-     * signature to be output in HTML
+     * signature to be output in HTML. If packFile is null, files are
+     * compressed unless they appear to be minified already.
+     */
+    public static String addCSS(String src, Boolean packFile) {
+        return addCSS(src, packFile, null);
+    }
+
+    /**
+     * Adds the given source file(s) to the named CSS bundle. If bundle is
+     * null, the files are added to the default bundle.
      */
-    public static String addCSS(String src, boolean packFile) {
-        return rqManager.get().addMultiFile(RequestManager.RQ_TYPE_STYLE, src, packFile);
+    public static String addCSS(String src, Boolean packFile, String bundle) {
+        return getRequestManager().addMultiFile(RequestManager.RQ_TYPE_STYLE, src, packFile,
+                bundle);
     }
 
     /**
      * Outputs the tag indicating where the compressed JS should be included.
      */
     public static String compressedJSTag() {
-        return rqManager.get().compressedTag(RequestManager.RQ_TYPE_SCRIPT);
+        return compressedJSTag(null, false, false);
+    }
+
+    /**
+     * Outputs the tag indicating where the compressed JS for the named bundle
+     * should be included, optionally loaded asynchronously or deferred.
+     */
+    public static String compressedJSTag(String bundle, boolean async, boolean defer) {
+        String attributes = null;
+        if (async || defer) {
+            attributes = (async ? getBooleanAttribute("async") : "")
+                    + (defer ? getBooleanAttribute("defer") : "");
+        }
+        return getRequestManager().compressedTag(RequestManager.RQ_TYPE_SCRIPT, bundle,
+                attributes);
+    }
+
+    private static String getBooleanAttribute(String name) {
+        // XHTML doesn't allow attributes without a value
+        return PluginConfig.htmlCompatible ? " " + name : " " + name + "=\"" + name + "\"";
     }
 
     /**
      * Outputs the tag indicating where the compressed CSS should be included.
      */
     public static String compressedCSSTag() {
-        return rqManager.get().compressedTag(RequestManager.RQ_TYPE_STYLE);
+        return compressedCSSTag(null);
+    }
+
+    /**
+     * Outputs the tag indicating where the compressed CSS for the named
+     * bundle should be included.
+     */
+    public static String compressedCSSTag(String bundle) {
+        return getRequestManager().compressedTag(RequestManager.RQ_TYPE_STYLE, bundle, null);
     }
 
     @Override
@@ -86,13 +177,27 @@ public class Plugin extends PlayPlugin {
             rqManager.get().saveFileList();
         }
 
-        rqManager.set(null);
+        rqManager.remove();
     }
 
     @Override
     public void onInvocationException(Throwable e) {
-        if (rqManager.get() != null) {
-            rqManager.get().errorOccurred();
+        // The error page may use press tags, so make sure they are not
+        // compressed. Jobs and other invocations that aren't requests don't
+        // render an error page, so don't create a request manager for them.
+        RequestManager manager = rqManager.get();
+        if (manager == null && Request.current() != null) {
+            manager = getRequestManager();
         }
+        if (manager != null) {
+            manager.errorOccurred();
+        }
+    }
+
+    @Override
+    public void invocationFinally() {
+        // Don't leave the request manager on the thread for the next
+        // invocation, eg after an error page
+        rqManager.remove();
     }
 }
@@ -1,7 +1,12 @@
 package press;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import play.Play;
 import play.Play.Mode;
+import play.libs.Time;
 
 public class PluginConfig {
     /**
@@ -21,6 +26,10 @@ public class PluginConfig {
         // Whether to use the file system or memory to store compressed files
         public static final boolean inMemoryStorage = false;
 
+        // The stores compressed files are kept in, fastest first. Default is
+        // memory if inMemoryStorage is set, otherwise the file system.
+        public static final String storage = "disk";
+
         // The amount of time that a compression key is stored for.
         // This only needs to be as long as the time between when the action
         // finishes and the browser requests the compressed javascript (usually
@@ -31,6 +40,73 @@ public class PluginConfig {
         // to occur before a timeout exception is thrown.
         public static final int maxCompressionTimeMillis = 60000;
 
+        // The maximum amount of time in milli-seconds allowed for compression
+        // of a single file. If compression takes longer the file is added to
+        // the compressed output uncompressed.
+        public static final int maxFileCompressionTimeMillis = 20000;
+
+        // The number of threads dedicated to compression
+        public static final int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+        // Whether to start generating the compressed file in the background
+        // as soon as a page that needs it has been rendered, rather than
+        // waiting for the browser to request it
+        public static final boolean generateOnRender = false;
+
+        // Whether files that appear to be minified already are added to
+        // compressed output without being compressed again, unless the tag
+        // specifies the compress parameter
+        public static final boolean detectMinified = true;
+
+        // Whether to check for files added to or removed from the source
+        // directories. Default is to check in dev only.
+        public static final boolean checkSourceFileChanges = (Play.mode == Mode.DEV);
+
+        // How often to check whether a source file has been modified, in
+        // milli-seconds. Default is to check each time the file is used in
+        // dev, and at most once every two seconds in prod.
+        public static final int sourceFileCheckIntervalMillis = (Play.mode == Mode.DEV) ? 0 : 2000;
+
+        // Whether to remember the order in which files appear in the
+        // response, so that it doesn't need to be scanned when the same
+        // templates add the same files. Default is to remember in prod only,
+        // as templates can change in dev.
+        public static final boolean rememberFileOrder = (Play.mode == Mode.PROD);
+
+        // Whether to remove the file request signatures, eg
+        // "<!-- press-js: myfile.js -->", from the HTML sent to the browser.
+        // Default is to remove them in prod only, as they're useful for
+        // debugging.
+        public static final boolean removeSignatures = (Play.mode == Mode.PROD);
+
+        // Compressed files up to this size in bytes are included in the page
+        // rather than linked to. Zero means never inline.
+        public static final int inlineMaxBytes = 0;
+
+        // Whether to add a Link header asking the browser to preload the
+        // compressed files used by the page
+        public static final boolean preloadHeaders = false;
+
+        // Whether to split the files that many pages' compressed files start
+        // with into a shared compressed file, so the browser fetches them once
+        public static final boolean sharedChunks = false;
+
+        // The number of compressed files that must start with the same files
+        // before they are split into a shared compressed file
+        public static final int sharedChunksMinBundles = 3;
+
+        // The smallest number of files in a shared compressed file
+        public static final int sharedChunksMinFiles = 2;
+
+        // The base urls of the other servers in the pool, separated by
+        // commas, eg "http://10.0.0.2:9000". Compressed files are fetched
+        // from them, if they have them, instead of being generated.
+        public static final String peers = "";
+
+        // How long to wait for another server to respond with a compressed
+        // file, in milli-seconds
+        public static final int peerTimeoutMillis = 500;
+
         // Indicates whether the code output by press is compatible with the
         // HTML standard. For example HTML requires that a closing LINK tag MUST
         // NOT be output, while XHTML requires that it MUST be output
@@ -72,6 +148,39 @@ public class PluginConfig {
 
             // Options for YUI CSS compression
             public static final int lineBreak = -1;
+
+            // Whether to rewrite the urls of local images, fonts etc in
+            // stylesheets to fingerprinted urls that can be cached forever
+            public static final boolean rewriteUrls = false;
+
+            // Assets referenced from stylesheets up to this size in bytes
+            // are included as data uris. Zero means never.
+            public static final int dataUriMaxBytes = 0;
+
+            // The maximum number of bytes of data uris in a compressed file
+            public static final int dataUriBundleMaxBytes = 65536;
+        }
+
+        public static class store {
+            // Compressed files on disk that have not been used for this long
+            // are deleted. Empty means never.
+            public static final String maxAge = "30d";
+
+            // The least recently used compressed files on disk are deleted
+            // when there are more than this many megabytes of them. Zero
+            // means no limit.
+            public static final int maxMegabytes = 0;
+
+            // The number of most recently used compressed files of each type
+            // that are never deleted, so that pages cached by browsers can
+            // still get their compressed files
+            public static final int keepRecent = 100;
+
+            // How often to look for compressed files to delete
+            public static final String sweepInterval = "1h";
+
+            // The directory shared with other servers, for the shared store
+            public static final String sharedDir = "";
         }
     }
 
@@ -79,8 +188,24 @@ public class PluginConfig {
     public static CachingStrategy cache;
     public static boolean cacheClearEnabled;
     public static boolean inMemoryStorage;
+    public static String storage;
     public static String compressionKeyStorageTime;
     public static int maxCompressionTimeMillis;
+    public static int maxFileCompressionTimeMillis;
+    public static int compressionThreads;
+    public static boolean generateOnRender;
+    public static boolean detectMinified;
+    public static boolean checkSourceFileChanges;
+    public static int sourceFileCheckIntervalMillis;
+    public static boolean rememberFileOrder;
+    public static boolean removeSignatures;
+    public static int inlineMaxBytes;
+    public static boolean preloadHeaders;
+    public static boolean sharedChunks;
+    public static int sharedChunksMinBundles;
+    public static int sharedChunksMinFiles;
+    public static String[] peers;
+    public static int peerTimeoutMillis;
     public static boolean htmlCompatible;
     public static String contentHostingDomain;
     public static String p3pHeader;
@@ -102,6 +227,17 @@ public class PluginConfig {
         public static String srcDir = DefaultConfig.css.srcDir;
         public static String compressedDir = DefaultConfig.css.compressedDir;
         public static int lineBreak = DefaultConfig.css.lineBreak;
+        public static boolean rewriteUrls = DefaultConfig.css.rewriteUrls;
+        public static int dataUriMaxBytes = DefaultConfig.css.dataUriMaxBytes;
+        public static int dataUriBundleMaxBytes = DefaultConfig.css.dataUriBundleMaxBytes;
+    }
+
+    public static class store {
+        public static long maxAgeMillis;
+        public static long maxBytes;
+        public static int keepRecent = DefaultConfig.store.keepRecent;
+        public static long sweepIntervalMillis;
+        public static String sharedDir = DefaultConfig.store.sharedDir;
     }
 
     // Required to make the class loader happy
@@ -124,10 +260,39 @@ public class PluginConfig {
                 DefaultConfig.cacheClearEnabled);
         inMemoryStorage = ConfigHelper.getBoolean("press.inMemoryStorage",
                 DefaultConfig.inMemoryStorage);
+        String storageDefault = inMemoryStorage ? "memory" : DefaultConfig.storage;
+        storage = ConfigHelper.getString("press.storage", storageDefault);
         compressionKeyStorageTime = ConfigHelper.getString("press.key.lifetime",
                 DefaultConfig.compressionKeyStorageTime);
         maxCompressionTimeMillis = ConfigHelper.getInt("press.compression.maxTimeMillis",
                 DefaultConfig.maxCompressionTimeMillis);
+        maxFileCompressionTimeMillis = ConfigHelper.getInt("press.compression.maxFileTimeMillis",
+                DefaultConfig.maxFileCompressionTimeMillis);
+        compressionThreads = ConfigHelper.getInt("press.compression.threads",
+                DefaultConfig.compressionThreads);
+        generateOnRender = ConfigHelper.getBoolean("press.compression.generateOnRender",
+                DefaultConfig.generateOnRender);
+        detectMinified = ConfigHelper.getBoolean("press.compression.detectMinified",
+                DefaultConfig.detectMinified);
+        checkSourceFileChanges = ConfigHelper.getBoolean("press.sourceFiles.checkChanges",
+                DefaultConfig.checkSourceFileChanges);
+        sourceFileCheckIntervalMillis = ConfigHelper.getInt("press.sourceFiles.checkIntervalMillis",
+                DefaultConfig.sourceFileCheckIntervalMillis);
+        rememberFileOrder = ConfigHelper.getBoolean("press.fileOrder.remember",
+                DefaultConfig.rememberFileOrder);
+        removeSignatures = ConfigHelper.getBoolean("press.removeSignatures",
+                DefaultConfig.removeSignatures);
+        inlineMaxBytes = ConfigHelper.getInt("press.inline.maxBytes", DefaultConfig.inlineMaxBytes);
+        preloadHeaders = ConfigHelper.getBoolean("press.preloadHeaders",
+                DefaultConfig.preloadHeaders);
+        sharedChunks = ConfigHelper.getBoolean("press.sharedChunks", DefaultConfig.sharedChunks);
+        sharedChunksMinBundles = ConfigHelper.getInt("press.sharedChunks.minBundles",
+                DefaultConfig.sharedChunksMinBundles);
+        sharedChunksMinFiles = ConfigHelper.getInt("press.sharedChunks.minFiles",
+                DefaultConfig.sharedChunksMinFiles);
+        peers = parsePeers(ConfigHelper.getString("press.peers", DefaultConfig.peers));
+        peerTimeoutMillis = ConfigHelper.getInt("press.peers.timeoutMillis",
+                DefaultConfig.peerTimeoutMillis);
         htmlCompatible = ConfigHelper.getBoolean("press.htmlCompatible",
                 DefaultConfig.htmlCompatible);
         contentHostingDomain = ConfigHelper.getString("press.contentHostingDomain",
@@ -145,6 +310,12 @@ public class PluginConfig {
 
         // YUI options
         css.lineBreak = ConfigHelper.getInt("press.yui.css.lineBreak", DefaultConfig.css.lineBreak);
+        css.rewriteUrls = ConfigHelper.getBoolean("press.css.rewriteUrls",
+                DefaultConfig.css.rewriteUrls);
+        css.dataUriMaxBytes = ConfigHelper.getInt("press.css.dataUriMaxBytes",
+                DefaultConfig.css.dataUriMaxBytes);
+        css.dataUriBundleMaxBytes = ConfigHelper.getInt("press.css.dataUriBundleMaxBytes",
+                DefaultConfig.css.dataUriBundleMaxBytes);
         js.lineBreak = ConfigHelper.getInt("press.yui.js.lineBreak", DefaultConfig.js.lineBreak);
         js.munge = ConfigHelper.getBoolean("press.yui.js.munge", DefaultConfig.js.munge);
         js.warn = ConfigHelper.getBoolean("press.yui.js.warn", DefaultConfig.js.warn);
@@ -153,6 +324,16 @@ public class PluginConfig {
         js.preserveStringLiterals = ConfigHelper.getBoolean("press.yui.js.preserveStringLiterals",
                 DefaultConfig.js.preserveStringLiterals);
 
+        store.maxAgeMillis = getDurationMillis("press.store.maxAge", DefaultConfig.store.maxAge);
+        store.maxBytes = ConfigHelper.getInt("press.store.maxMegabytes",
+                DefaultConfig.store.maxMegabytes) * 1024L * 1024L;
+        store.keepRecent = ConfigHelper.getInt("press.store.keepRecent",
+                DefaultConfig.store.keepRecent);
+        store.sweepIntervalMillis = getDurationMillis("press.store.sweepInterval",
+                DefaultConfig.store.sweepInterval);
+        store.sharedDir = ConfigHelper.getString("press.store.sharedDir",
+                DefaultConfig.store.sharedDir);
+
         // Add a trailing slash to directories, if necessary
         css.srcDir = addTrailingSlash(css.srcDir);
         css.compressedDir = addTrailingSlash(css.compressedDir);
@@ -168,7 +349,24 @@ public class PluginConfig {
         PressLogger.trace("caching strategy: %s", cache);
         PressLogger.trace("cache publicly clearable: %s", cacheClearEnabled);
         PressLogger.trace("in memory storage: %s", inMemoryStorage);
+        PressLogger.trace("storage: %s", storage);
         PressLogger.trace("compression key storage time: %s", compressionKeyStorageTime);
+        PressLogger.trace("max compression time: %d", maxCompressionTimeMillis);
+        PressLogger.trace("max file compression time: %d", maxFileCompressionTimeMillis);
+        PressLogger.trace("compression threads: %d", compressionThreads);
+        PressLogger.trace("generate on render: %b", generateOnRender);
+        PressLogger.trace("detect minified files: %b", detectMinified);
+        PressLogger.trace("check source file changes: %b", checkSourceFileChanges);
+        PressLogger.trace("source file check interval millis: %d", sourceFileCheckIntervalMillis);
+        PressLogger.trace("remember file order: %b", rememberFileOrder);
+        PressLogger.trace("remove signatures: %b", removeSignatures);
+        PressLogger.trace("inline max bytes: %d", inlineMaxBytes);
+        PressLogger.trace("preload headers: %b", preloadHeaders);
+        PressLogger.trace("shared chunks: %b", sharedChunks);
+        PressLogger.trace("shared chunks min bundles: %d", sharedChunksMinBundles);
+        PressLogger.trace("shared chunks min files: %d", sharedChunksMinFiles);
+        PressLogger.trace("peers: %s", Arrays.toString(peers));
+        PressLogger.trace("peer timeout millis: %d", peerTimeoutMillis);
         PressLogger.trace("HTML compatible: %b", htmlCompatible);
         PressLogger.trace("Content hosting domain: %s", contentHostingDomain);
         PressLogger.trace("P3P header: %s", p3pHeader);
@@ -177,6 +375,14 @@ public class PluginConfig {
         PressLogger.trace("js source directory: %s", js.srcDir);
         PressLogger.trace("js compressed output directory: %s", js.compressedDir);
         PressLogger.trace("YUI css line break: %d", css.lineBreak);
+        PressLogger.trace("css rewrite urls: %b", css.rewriteUrls);
+        PressLogger.trace("css data uri max bytes: %d", css.dataUriMaxBytes);
+        PressLogger.trace("css data uri bundle max bytes: %d", css.dataUriBundleMaxBytes);
+        PressLogger.trace("store max age millis: %d", store.maxAgeMillis);
+        PressLogger.trace("store max bytes: %d", store.maxBytes);
+        PressLogger.trace("store keep recent: %d", store.keepRecent);
+        PressLogger.trace("store sweep interval millis: %d", store.sweepIntervalMillis);
+        PressLogger.trace("store shared directory: %s", store.sharedDir);
         PressLogger.trace("YUI js line break: %d", js.lineBreak);
         PressLogger.trace("YUI js munge: %s", js.munge);
         PressLogger.trace("YUI js warn: %s", js.warn);
@@ -184,6 +390,34 @@ public class PluginConfig {
         PressLogger.trace("YUI js preserve string literals: %s", js.preserveStringLiterals);
     }
 
+    /**
+     * Reads a comma separated list of base urls, without trailing slashes
+     */
+    private static String[] parsePeers(String value) {
+        List<String> urls = new ArrayList<String>();
+        for (String url : value.split(",")) {
+            url = url.trim();
+            while (url.endsWith("/")) {
+                url = url.substring(0, url.length() - 1);
+            }
+            if (url.length() > 0) {
+                urls.add(url);
+            }
+        }
+        return urls.toArray(new String[urls.size()]);
+    }
+
+    /**
+     * Reads a duration such as "30d", returning zero if it's empty
+     */
+    private static long getDurationMillis(String configKey, String defaultValue) {
+        String duration = ConfigHelper.getString(configKey, defaultValue).trim();
+        if (duration.length() == 0) {
+            return 0;
+        }
+        return Time.parseDuration(duration) * 1000L;
+    }
+
     public static String addTrailingSlash(String dir) {
         if (dir.charAt(dir.length() - 1) != '/') {
             return dir + '/';
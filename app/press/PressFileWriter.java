@@ -1,21 +1,30 @@
 package press;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import play.Logger;
 import play.exceptions.UnexpectedException;
 import play.vfs.VirtualFile;
+import press.Compressor.EngineBusyException;
 import press.io.CompressedFile;
 import press.io.FileIO;
+import press.io.IncompleteCompressedFile;
 
 public class PressFileWriter {
     static final String PRESS_SIGNATURE = "press-1.0";
@@ -28,11 +37,47 @@ public class PressFileWriter {
         this.compressor = compressor;
     }
 
+    // The proportion of press.compression.maxTimeMillis after which the
+    // remaining component files are added uncompressed. The rest is left
+    // for adding them, so that the compressed file is complete before a
+    // browser waiting for it gives up.
+    static final double BUNDLE_BUDGET_RATIO = 0.75;
+
     /**
      * Create a compressed archive from the given component files and write it
      * to the given file.
      */
     public CompressedFile writeCompressedFile(List<FileInfo> componentFiles, CompressedFile file) {
+        return writeCompressedFile(componentFiles, file, System.currentTimeMillis()).file;
+    }
+
+    /**
+     * A compressed file that has been written
+     */
+    public static class Output {
+        public final CompressedFile file;
+
+        // Whether any of the component files were added with fallback
+        // output rather than compressed, eg because compression failed or
+        // took too long. Such a file is not shared with other servers.
+        public final boolean fallbackUsed;
+
+        Output(CompressedFile file, boolean fallbackUsed) {
+            this.file = file;
+            this.fallbackUsed = fallbackUsed;
+        }
+    }
+
+    /**
+     * Create a compressed archive from the given component files and write it
+     * to the given file, measuring the time allowed from the given start time,
+     * eg the time a browser started waiting for the file. If some of the
+     * component files could not be compressed in time for a reason that may
+     * not happen next time, eg no worker was free, the output is not stored
+     * and an incomplete file holding it is returned instead.
+     */
+    public Output writeCompressedFile(List<FileInfo> componentFiles, CompressedFile file,
+            long startTime) {
         long timeStart = System.currentTimeMillis();
 
         // If the file is being written by another thread, startWrite() will
@@ -40,37 +85,255 @@ public class PressFileWriter {
         Writer writer = file.startWrite();
         if (writer == null) {
             PressLogger.trace("Compressed file was generated by another thread");
-            return file;
+            // We can't tell how the other thread generated it
+            return new Output(file, true);
         }
 
+        // The time after which the remaining component files are added to
+        // the output uncompressed
+        long deadline = startTime + getBundleBudgetMillis();
+        BundleContext context = new BundleContext();
+        Fallbacks fallbacks = new Fallbacks();
+
+        // A copy of the output is kept, to be served if it is not stored
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        Writer copyWriter = new OutputStreamWriter(copy, Charset.forName("UTF-8"));
+        writer = new CopyingWriter(writer, copyWriter);
+
         try {
             writer.append(createFileHeader());
 
             for (FileInfo componentFile : componentFiles) {
-                compress(componentFile, writer);
+                // Between component files, give way to any more urgent
+                // compression work that is waiting
+                CompressionScheduler.yieldToHigherPriority();
+
+                // A file already imported by an earlier stylesheet is not
+                // included again
+                if (!context.include(componentFile.file)) {
+                    PressLogger.trace("Skipping %s, which is already included",
+                            componentFile.file.getName());
+                    continue;
+                }
+
+                boolean compress = shouldCompress(componentFile);
+                if (!compress && compressor.canPassThrough(componentFile.file)) {
+                    // Files that are already compressed are copied straight
+                    // to the output
+                    PressLogger.trace("Adding already compressed file %s",
+                            componentFile.file.getName());
+                    file.append(componentFile.file);
+                    copyWriter.flush();
+                    FileIO.transfer(componentFile.file, copy);
+                } else {
+                    compress(componentFile.file, compress, writer, deadline, file.name(),
+                            context, fallbacks);
+                }
             }
 
             long timeAfter = System.currentTimeMillis();
             PressLogger.trace("Time to compress files for '%s': %d milli-seconds",
                     FileIO.getFileNameFromPath(file.name()), (timeAfter - timeStart));
+            copyWriter.flush();
         } catch (Exception e) {
+            file.abort();
             throw new UnexpectedException(e);
-        } finally {
-            // Note that this flushes and closes the writer as well
-            file.close();
         }
 
-        return file;
+        if (fallbacks.retry) {
+            PressLogger.trace("Not storing '%s', as some files could not be compressed in time",
+                    FileIO.getFileNameFromPath(file.name()));
+            file.abort();
+            return new Output(new IncompleteCompressedFile(file.getFileKey(), copy.toByteArray()),
+                    true);
+        }
+
+        // Note that this flushes and closes the writer as well
+        file.close();
+        return new Output(file, fallbacks.used);
     }
 
-    private void compress(FileInfo fileInfo, Writer out) throws Exception {
-        String fileName = fileInfo.file.getName();
-        if (fileInfo.compress) {
+    /**
+     * Records why component files were added with fallback output rather
+     * than compressed
+     */
+    private static class Fallbacks {
+        // Whether any file was added with fallback output
+        boolean used;
+
+        // Whether any file was not compressed for a reason that may not
+        // happen next time, eg because no worker was free
+        boolean retry;
+    }
+
+    /**
+     * Writes to the compressed file and to a copy of the output
+     */
+    private static class CopyingWriter extends Writer {
+        private final Writer out;
+        private final Writer copy;
+
+        CopyingWriter(Writer out, Writer copy) {
+            this.out = out;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            copy.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            copy.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            copy.close();
+        }
+    }
+
+    static long getBundleBudgetMillis() {
+        return (long) (PluginConfig.maxCompressionTimeMillis * BUNDLE_BUDGET_RATIO);
+    }
+
+    private static boolean shouldCompress(FileInfo fileInfo) {
+        if (fileInfo.compress && fileInfo.detectMinified) {
+            return !MinifiedFileDetector.isMinified(fileInfo.file);
+        }
+        return fileInfo.compress;
+    }
+
+    private void compress(final File sourceFile, final boolean compress, Writer out,
+            long deadline, String compressedFileName, final BundleContext context,
+            Fallbacks fallbacks) throws Exception {
+        String fileName = sourceFile.getName();
+        if (compress) {
             PressLogger.trace("Compressing %s", fileName);
         } else {
             PressLogger.trace("Adding already compressed file %s", fileName);
         }
-        compressor.compress(fileInfo.file, out, fileInfo.compress);
+
+        // If this version of the file has already failed to compress, don't
+        // waste time trying again
+        long version = compressor.getFileVersion(sourceFile);
+        CompressionFailures.Failure failure = CompressionFailures.get(sourceFile, version);
+        if (failure != null) {
+            PressLogger.trace("%s previously failed to compress, using fallback", fileName);
+            writeFallback(sourceFile, out, failure, context, fallbacks);
+            return;
+        }
+
+        // If this version of the file has already taken too long to
+        // compress, don't start another attempt that can't be stopped
+        if (CompressionTimeouts.hasTimedOut(sourceFile, version)) {
+            PressLogger.trace("%s previously took too long to compress, using fallback",
+                    fileName);
+            writeFallback(sourceFile, out, context, fallbacks);
+            return;
+        }
+
+        // If the time allowed for the whole compressed file has run out, don't
+        // even try to compress the file
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            CompressionTimeouts.bundleTimedOut(sourceFile, version, compressedFileName,
+                    getBundleBudgetMillis());
+            fallbacks.retry = true;
+            writeFallback(sourceFile, out, context, fallbacks);
+            return;
+        }
+
+        // Compress the file on a worker thread, so that we can give up on it
+        // if it takes too long. The output is buffered so that if we do give
+        // up, nothing has been written yet.
+        long budget = Math.min(remaining, PluginConfig.maxFileCompressionTimeMillis);
+        // The attempt works on a copy of the state of the compressed file, so
+        // that an abandoned attempt doesn't affect the fallback
+        final BundleContext attemptContext = context.fork();
+        // Waiting for a busy engine may take up part of the time allowed, so
+        // that the wait ends before the time allowed for the file does
+        final long lockDeadline = System.currentTimeMillis() + budget / 2;
+        final AtomicBoolean started = new AtomicBoolean();
+        String compressed;
+        try {
+            compressed = CompressionScheduler.runWithDeadline(new Callable<String>() {
+                public String call() throws Exception {
+                    started.set(true);
+                    // Make the state of the compressed file available to the
+                    // compressor, which may be on another thread
+                    BundleContext.set(attemptContext);
+                    try {
+                        StringWriter buffer = new StringWriter();
+                        long lockTimeout = Math.max(0, lockDeadline - System.currentTimeMillis());
+                        compressor.compress(sourceFile, buffer, compress, lockTimeout);
+                        return buffer.toString();
+                    } finally {
+                        BundleContext.set(null);
+                    }
+                }
+            }, budget);
+        } catch (EngineBusyException e) {
+            CompressionTimeouts.notStarted(sourceFile, version, e.getMessage());
+            fallbacks.retry = true;
+            writeFallback(sourceFile, out, context, fallbacks);
+            return;
+        } catch (TimeoutException e) {
+            if (started.get()) {
+                CompressionTimeouts.fileTimedOut(sourceFile, version, budget);
+            } else {
+                CompressionTimeouts.notStarted(sourceFile, version, "no worker was free for "
+                        + budget + " milli-seconds");
+                fallbacks.retry = true;
+            }
+            writeFallback(sourceFile, out, context, fallbacks);
+            return;
+        } catch (Exception e) {
+            // The compressor may have recorded the failure itself, with more
+            // specific fallback output
+            failure = CompressionFailures.get(sourceFile, version);
+            if (failure == null) {
+                CompressionFailures.record(sourceFile, version, getErrorMessage(e));
+                failure = CompressionFailures.get(sourceFile, version);
+            }
+            writeFallback(sourceFile, out, failure, context, fallbacks);
+            return;
+        }
+
+        context.merge(attemptContext);
+        out.write(compressed);
+    }
+
+    private void writeFallback(File file, Writer out, CompressionFailures.Failure failure,
+            BundleContext context, Fallbacks fallbacks) throws IOException {
+        if (failure != null && failure.fallbackOutput != null) {
+            fallbacks.used = true;
+            out.write(failure.fallbackOutput);
+        } else {
+            writeFallback(file, out, context, fallbacks);
+        }
+    }
+
+    private void writeFallback(File file, Writer out, BundleContext context, Fallbacks fallbacks)
+            throws IOException {
+        fallbacks.used = true;
+        BundleContext.set(context);
+        try {
+            compressor.writeFallback(file, out);
+        } finally {
+            BundleContext.set(null);
+        }
+    }
+
+    private static String getErrorMessage(Exception e) {
+        if (e.getMessage() == null) {
+            return e.getClass().getName();
+        }
+        return e.getClass().getSimpleName() + ": " + e.getMessage();
     }
 
     public static String createFileHeader() {
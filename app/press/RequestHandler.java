@@ -1,28 +1,106 @@
 package press;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import play.mvc.Router;
 import play.vfs.VirtualFile;
 import press.io.FileIO;
 
 public abstract class RequestHandler {
-    Map<String, Boolean> files = new HashMap<String, Boolean>();
+    // The names of the files added so far, created when the first file is
+    // added
+    private Set<String> files;
 
-    abstract String getTag(String src);
+    // The name of the bundle the files are added to
+    protected final String bundle;
+
+    // The url of the compressed file, the tag output for it, and any extra
+    // attributes the tag was given
+    private String compressedUrl;
+    private String compressedTag;
+    private String compressedTagAttributes;
+
+    // The markup that includes the compressed file in the page, if it is
+    // small enough to be inlined
+    private byte[] inlineTag;
+
+    // The markup that includes the shared compressed file and the compressed
+    // file with the rest of the files, if the files were split
+    private byte[] chunkedTag;
+    private String chunkUrl;
+
+    protected RequestHandler(String bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Writes the tag that includes the file at the given url
+     * 
+     * @param attributes
+     *            extra attributes to add to the tag, eg " async", or null
+     */
+    abstract void appendTag(StringBuilder out, String src, String attributes);
+
+    void appendTag(StringBuilder out, String src) {
+        appendTag(out, src, null);
+    }
+
+    String getTag(String src) {
+        return getTag(src, null);
+    }
+
+    String getTag(String src, String attributes) {
+        StringBuilder out = new StringBuilder(128 + src.length());
+        appendTag(out, src, attributes);
+        return out.toString();
+    }
 
     abstract protected SourceFileManager getSourceManager();
 
+    /**
+     * Whether any files have been added through this handler, without
+     * creating the source manager
+     */
+    abstract protected boolean hasSourceManager();
+
+    /**
+     * Gets the source manager if any files have been added through this
+     * handler, otherwise null
+     */
+    SourceFileManager getUsedSourceManager() {
+        return hasSourceManager() ? getSourceManager() : null;
+    }
+
     abstract protected CompressedFileManager getCompressedFileManager();
 
+    /**
+     * Gets the opening tag of a block containing inline content, eg
+     * "<script type=\"text/javascript\">"
+     */
+    abstract String getInlineStart();
+
+    /**
+     * Gets the closing tag of a block containing inline content
+     */
+    abstract String getInlineEnd();
+
+    /**
+     * Gets the type of content for a preload link, eg "script"
+     */
+    abstract String getPreloadType();
+
     abstract public String getCompressedUrl(String requestKey);
 
     abstract public String getSingleFileCompressionKey(String fileName);
 
     protected String getSingleFileCompressionKey(String fileName, SourceFileManager tmpManager) {
         PressLogger.trace("Request to compress single file %s", fileName);
-        return tmpManager.addSingleFile(fileName, true);
+        return tmpManager.addSingleFile(fileName, null);
     }
 
     public String getSrcDir() {
@@ -33,24 +111,166 @@ public abstract class RequestHandler {
         return getSourceManager().checkFileExists(fileName);
     }
 
-    public String add(String fileName, boolean packFile) {
-        return getSourceManager().add(fileName, packFile);
+    /**
+     * Adds the file to compression and writes its signature to the output
+     */
+    public void add(StringBuilder out, String fileName, VirtualFile file, Boolean packFile) {
+        SourceFileManager srcManager = getSourceManager();
+        srcManager.addFile(fileName, file, packFile);
+        srcManager.appendFileRequestSignature(out, fileName);
     }
 
     public void saveFileList() {
-        getSourceManager().saveFileList();
+        // No press tag was used for this type of file
+        if (!hasSourceManager()) {
+            return;
+        }
+
+        List<FileInfo> fileList = getSourceManager().saveFileList();
+
+        // If other pages start with the same files, put them in a compressed
+        // file of their own so the browser can reuse it across pages. Scripts
+        // with extra attributes may not run in order, so leave them be.
+        if (fileList != null && PluginConfig.sharedChunks && compressedTag != null
+                && compressedTagAttributes == null && splitSharedChunk(fileList)) {
+            return;
+        }
+
+        // If the compressed file is small enough, include it in the page
+        // instead. Scripts that are loaded asynchronously or deferred would
+        // run at a different time if they were inlined, so leave them be.
+        if (fileList != null && PluginConfig.inlineMaxBytes > 0 && compressedTag != null
+                && compressedTagAttributes == null) {
+            inlineTag = InlineBundles.get(getSourceManager().requestKey, fileList,
+                    getCompressedFileManager(), getInlineStart(), getInlineEnd());
+            if (inlineTag != null) {
+                return;
+            }
+        }
+
+        // Start generating the compressed file in the background so that it's
+        // likely to be ready by the time the browser requests it
+        if (fileList != null && PluginConfig.generateOnRender) {
+            getCompressedFileManager().scheduleGeneration(fileList,
+                    CompressionPriority.Regeneration);
+        }
+    }
+
+    /**
+     * Splits the files into a shared compressed file and a compressed file
+     * with the rest of the files, if other bundles start with the same files
+     * 
+     * @return false if the files were not split
+     */
+    private boolean splitSharedChunk(List<FileInfo> fileList) {
+        List<String> paths = new ArrayList<String>(fileList.size());
+        for (FileInfo fileInfo : fileList) {
+            paths.add(fileInfo.file.getAbsolutePath());
+        }
+
+        SourceFileManager srcManager = getSourceManager();
+        SharedChunks.Chunk chunk = SharedChunks.getChunk(srcManager.extension + " " + bundle,
+                srcManager.requestKey, paths);
+        if (chunk == null) {
+            return false;
+        }
+
+        List<FileInfo> chunkFiles = new ArrayList<FileInfo>(fileList.subList(0,
+                chunk.files.size()));
+        List<FileInfo> restFiles = new ArrayList<FileInfo>(fileList.subList(
+                chunk.files.size(), fileList.size()));
+        String chunkKey = srcManager.getRequestKey(chunkFiles);
+        String restKey = srcManager.getRequestKey(restFiles);
+        SourceFileManager.addFileListToCache(chunkKey, chunkFiles);
+        SourceFileManager.addFileListToCache(restKey, restFiles);
+        PressLogger.trace("Splitting %s into shared %s and %s", srcManager.requestKey, chunkKey,
+                restKey);
+
+        chunkUrl = getCompressedUrl(chunkKey);
+        compressedUrl = getCompressedUrl(restKey);
+        StringBuilder tags = new StringBuilder(256);
+        appendTag(tags, chunkUrl);
+        appendTag(tags, compressedUrl);
+        chunkedTag = SourceFileManager.getBytes(tags.toString());
+
+        if (PluginConfig.generateOnRender) {
+            CompressedFileManager compressManager = getCompressedFileManager();
+            compressManager.scheduleGeneration(chunkFiles, CompressionPriority.Regeneration);
+            compressManager.scheduleGeneration(restFiles, CompressionPriority.Regeneration);
+        }
+        return true;
     }
 
     public String closeRequest() {
         return getSourceManager().closeRequest();
     }
 
+    /**
+     * Remembers the tag output for the compressed file, so that it can be
+     * replaced if the file is inlined
+     */
+    void setCompressedTag(String url, String tag, String attributes) {
+        compressedUrl = url;
+        compressedTag = tag;
+        compressedTagAttributes = attributes;
+    }
+
+    String getCompressedTag() {
+        return compressedTag;
+    }
+
+    /**
+     * Writes a preload link for the compressed file, eg
+     * "&lt;/press/js/abc.js&gt;; rel=preload; as=script"
+     * 
+     * @return false if there is no compressed file to preload
+     */
+    boolean appendPreloadLink(StringBuilder out) {
+        if (compressedUrl == null || inlineTag != null) {
+            return false;
+        }
+
+        if (chunkUrl != null) {
+            out.append('<').append(PluginConfig.contentHostingDomain).append(chunkUrl)
+                    .append(">; rel=preload; as=").append(getPreloadType()).append(", ");
+        }
+        out.append('<').append(PluginConfig.contentHostingDomain).append(compressedUrl)
+                .append(">; rel=preload; as=").append(getPreloadType());
+        return true;
+    }
+
+    /**
+     * Gets the markup that includes the compressed file in the page, or null
+     * if it is not inlined
+     */
+    byte[] getInlineTag() {
+        return inlineTag;
+    }
+
+    /**
+     * Gets the markup that replaces the tag output for the compressed file,
+     * eg because it is inlined or split, or null if it is not replaced
+     */
+    byte[] getReplacementTag() {
+        return inlineTag != null ? inlineTag : chunkedTag;
+    }
+
     protected void checkForDuplicates(String fileName) {
-        if (!files.containsKey(fileName)) {
-            files.put(fileName, true);
+        if (files == null) {
+            files = new HashSet<String>();
+        }
+        if (files.add(fileName)) {
             return;
         }
 
+        throwDuplicateFileException(fileName);
+    }
+
+    boolean hasFile(String fileName) {
+        return files != null && files.contains(fileName);
+    }
+
+    void throwDuplicateFileException(String fileName) {
         SourceFileManager srcManager = getSourceManager();
         throw new DuplicateFileException(srcManager.getFileType(), fileName,
                 srcManager.getTagName());
@@ -1,5 +1,12 @@
 package press;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import play.mvc.Http.Response;
 import play.mvc.Router;
 import play.vfs.VirtualFile;
 import press.io.PressFileGlobber;
@@ -11,16 +18,74 @@ public class RequestManager {
     public static final boolean RQ_TYPE_SCRIPT = true;
     public static final boolean RQ_TYPE_STYLE = !RQ_TYPE_SCRIPT;
 
+    // The name of the bundle files are added to if no bundle is specified
+    public static final String DEFAULT_BUNDLE = "";
+
+    // Bundle names appear in the file signatures, so keep them simple
+    private static final Pattern BUNDLE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
     private boolean errorOccurred = false;
-    private RequestHandler scriptRequestHandler = new ScriptRequestHandler();
-    private RequestHandler styleRequestHandler = new StyleRequestHandler();
 
-    private RequestHandler getRequestHandler(boolean rqType) {
-        return rqType == RQ_TYPE_SCRIPT ? scriptRequestHandler : styleRequestHandler;
+    // The handler for each bundle of each type of file, by bundle name. The
+    // handlers are created when a tag for their bundle is first used, so
+    // that pages that don't use press tags pay nothing
+    private Map<String, RequestHandler> scriptRequestHandlers;
+    private Map<String, RequestHandler> styleRequestHandlers;
+
+    private RequestHandler getRequestHandler(boolean rqType, String bundle) {
+        bundle = checkBundleName(bundle);
+        Map<String, RequestHandler> handlers = getRequestHandlers(rqType);
+        RequestHandler handler = handlers.get(bundle);
+        if (handler == null) {
+            if (rqType == RQ_TYPE_SCRIPT) {
+                handler = new ScriptRequestHandler(bundle);
+            } else {
+                handler = new StyleRequestHandler(bundle);
+            }
+            handlers.put(bundle, handler);
+        }
+        return handler;
+    }
+
+    private Map<String, RequestHandler> getRequestHandlers(boolean rqType) {
+        if (rqType == RQ_TYPE_SCRIPT) {
+            if (scriptRequestHandlers == null) {
+                scriptRequestHandlers = new LinkedHashMap<String, RequestHandler>(4);
+            }
+            return scriptRequestHandlers;
+        }
+
+        if (styleRequestHandlers == null) {
+            styleRequestHandlers = new LinkedHashMap<String, RequestHandler>(4);
+        }
+        return styleRequestHandlers;
+    }
+
+    private List<RequestHandler> getAllRequestHandlers() {
+        List<RequestHandler> handlers = new ArrayList<RequestHandler>(4);
+        if (scriptRequestHandlers != null) {
+            handlers.addAll(scriptRequestHandlers.values());
+        }
+        if (styleRequestHandlers != null) {
+            handlers.addAll(styleRequestHandlers.values());
+        }
+        return handlers;
+    }
+
+    private static String checkBundleName(String bundle) {
+        if (bundle == null || bundle.length() == 0) {
+            return DEFAULT_BUNDLE;
+        }
+
+        if (!BUNDLE_NAME.matcher(bundle).matches()) {
+            throw new PressException("Invalid bundle name '" + bundle + "'. Bundle names may "
+                    + "only contain letters, digits, '-' and '_'");
+        }
+        return bundle;
     }
 
     public String addSingleFile(boolean rqType, String fileName) {
-        RequestHandler handler = getRequestHandler(rqType);
+        RequestHandler handler = getRequestHandler(rqType, DEFAULT_BUNDLE);
         VirtualFile file = handler.checkFileExists(fileName);
 
         String src = null;
@@ -33,29 +98,67 @@ public class RequestManager {
         return handler.getTag(src);
     }
 
-    public String addMultiFile(boolean rqType, String src, boolean packFile) {
-        RequestHandler handler = getRequestHandler(rqType);
+    public String addMultiFile(boolean rqType, String src, Boolean packFile) {
+        return addMultiFile(rqType, src, packFile, DEFAULT_BUNDLE);
+    }
+
+    /**
+     * Adds the given file(s) to the named bundle
+     */
+    public String addMultiFile(boolean rqType, String src, Boolean packFile, String bundle) {
+        RequestHandler handler = getRequestHandler(rqType, bundle);
         String baseUrl = handler.getSrcDir();
-        String result = "";
-        for (String fileName : PressFileGlobber.getResolvedFiles(src, baseUrl)) {
+        List<String> fileNames = PressFileGlobber.getResolvedFiles(src, baseUrl);
+        StringBuilder result = new StringBuilder(fileNames.size() * 64);
+        for (String fileName : fileNames) {
             VirtualFile file = handler.checkFileExists(fileName);
-            handler.checkForDuplicates(fileName);
+            checkForDuplicates(rqType, handler, fileName);
 
             if (performCompression()) {
-                result += handler.add(fileName, packFile) + "\n";
+                handler.add(result, fileName, file, packFile);
+                result.append('\n');
             } else {
-                result += handler.getTag(Router.reverse(file));
+                handler.appendTag(result, Router.reverse(file));
             }
         }
 
-        return result;
+        return result.toString();
+    }
+
+    /**
+     * A file may only be added to one bundle of each type
+     */
+    private void checkForDuplicates(boolean rqType, RequestHandler handler, String fileName) {
+        handler.checkForDuplicates(fileName);
+
+        Map<String, RequestHandler> handlers = getRequestHandlers(rqType);
+        if (handlers.size() > 1) {
+            for (RequestHandler other : handlers.values()) {
+                if (other != handler && other.hasFile(fileName)) {
+                    other.throwDuplicateFileException(fileName);
+                }
+            }
+        }
     }
 
     public String compressedTag(boolean rqType) {
-        RequestHandler handler = getRequestHandler(rqType);
+        return compressedTag(rqType, DEFAULT_BUNDLE, null);
+    }
+
+    /**
+     * Outputs the tag for the named bundle
+     * 
+     * @param attributes
+     *            extra attributes to add to the tag, eg " async", or null
+     */
+    public String compressedTag(boolean rqType, String bundle, String attributes) {
+        RequestHandler handler = getRequestHandler(rqType, bundle);
         if (performCompression()) {
             String requestKey = handler.closeRequest();
-            return handler.getTag(handler.getCompressedUrl(requestKey));
+            String url = handler.getCompressedUrl(requestKey);
+            String tag = handler.getTag(url, attributes);
+            handler.setCompressedTag(url, tag, attributes);
+            return tag;
         }
         return "";
     }
@@ -65,8 +168,78 @@ public class RequestManager {
             return;
         }
 
-        scriptRequestHandler.saveFileList();
-        styleRequestHandler.saveFileList();
+        List<RequestHandler> handlers = getAllRequestHandlers();
+        for (RequestHandler handler : handlers) {
+            handler.saveFileList();
+            if (handler.getReplacementTag() != null) {
+                replaceCompressedTag(handler);
+            }
+        }
+
+        // Tell the browser about the compressed files in the headers, so that
+        // it can start fetching them before it has parsed the page
+        if (PluginConfig.preloadHeaders) {
+            addPreloadHeader(handlers);
+        }
+
+        // The browser doesn't need the file signatures, they were only there
+        // so that we could find the order of the files
+        if (PluginConfig.removeSignatures) {
+            removeSignatures(handlers);
+        }
+    }
+
+    private void addPreloadHeader(List<RequestHandler> handlers) {
+        StringBuilder links = new StringBuilder(64 * handlers.size());
+        Response response = null;
+        for (RequestHandler handler : handlers) {
+            int length = links.length();
+            if (length > 0) {
+                links.append(", ");
+            }
+            if (handler.appendPreloadLink(links)) {
+                response = handler.getSourceManager().currentResponse;
+            } else {
+                links.setLength(length);
+            }
+        }
+
+        if (response == null) {
+            return;
+        }
+
+        String existing = response.getHeader("Link");
+        if (existing != null && existing.length() > 0) {
+            links.insert(0, ", ").insert(0, existing);
+        }
+        response.setHeader("Link", links.toString());
+    }
+
+    /**
+     * Replaces the tag that links to the compressed file, eg with its content
+     * if it is inlined
+     */
+    private void replaceCompressedTag(RequestHandler handler) {
+        Response response = handler.getSourceManager().currentResponse;
+        ResponseRewriter.replace(response,
+                SourceFileManager.getBytes(handler.getCompressedTag()),
+                handler.getReplacementTag());
+    }
+
+    private void removeSignatures(List<RequestHandler> handlers) {
+        List<byte[]> starts = new ArrayList<byte[]>(handlers.size());
+        Response response = null;
+        for (RequestHandler handler : handlers) {
+            SourceFileManager srcManager = handler.getUsedSourceManager();
+            if (srcManager != null && srcManager.hasFiles()) {
+                starts.add(srcManager.getSignatureStart());
+                response = srcManager.currentResponse;
+            }
+        }
+
+        if (response != null) {
+            ResponseRewriter.removeSignatures(response, starts, SourceFileManager.SIGNATURE_END);
+        }
     }
 
     public void errorOccurred() {
@@ -77,8 +250,18 @@ public class RequestManager {
         return PluginConfig.enabled && !errorOccurred;
     }
 
+    /**
+     * Builds the tag markup from the configuration
+     */
+    public static void configure() {
+        ScriptRequestHandler.configure();
+        StyleRequestHandler.configure();
+    }
+
     public static void clearCache() {
         ScriptRequestHandler.clearCache();
         StyleRequestHandler.clearCache();
+        InlineBundles.clear();
+        SharedChunks.clear();
     }
 }
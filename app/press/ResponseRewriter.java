@@ -0,0 +1,141 @@
+package press;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import play.mvc.Http.Response;
+
+/**
+ * Rewrites the body of a rendered response after press has finished with
+ * it, working directly on the bytes rather than decoding them to a String.
+ */
+public class ResponseRewriter {
+
+    /**
+     * Replaces the first occurrence of target in the response body with the
+     * replacement
+     * 
+     * @return true if the target was found
+     */
+    public static boolean replace(Response response, byte[] target, byte[] replacement) {
+        ByteArrayOutputStream out = response.out;
+        if (out == null || out.size() == 0) {
+            return false;
+        }
+
+        byte[] content = out.toByteArray();
+        int index = indexOf(content, content.length, target);
+        if (index == -1) {
+            return false;
+        }
+
+        out.reset();
+        out.write(content, 0, index);
+        out.write(replacement, 0, replacement.length);
+        int after = index + target.length;
+        out.write(content, after, content.length - after);
+        return true;
+    }
+
+    static int indexOf(byte[] content, int length, byte[] target) {
+        return indexOf(content, 0, length, target);
+    }
+
+    /**
+     * Finds the first occurrence of target in the content at or after the
+     * given index
+     */
+    static int indexOf(byte[] content, int from, int length, byte[] target) {
+        for (int i = from; i + target.length <= length; i++) {
+            if (content[i] == target[0] && matches(content, length, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the file request signatures, eg "<!-- press-js: myfile.js -->"
+     * and the new line following each one, from the response body
+     * 
+     * @param starts
+     *            the start of each type of signature, eg "<!-- press-js: "
+     * @param end
+     *            the end of a signature, eg " -->"
+     */
+    public static void removeSignatures(Response response, List<byte[]> starts, byte[] end) {
+        ByteArrayOutputStream out = response.out;
+        if (out == null || out.size() == 0) {
+            return;
+        }
+
+        byte[] content = out.toByteArray();
+        int length = removeSignatures(content, content.length, starts, end);
+        if (length != content.length) {
+            PressLogger.trace("Removed %d bytes of file signatures from the response",
+                    content.length - length);
+            out.reset();
+            out.write(content, 0, length);
+        }
+    }
+
+    /**
+     * Compacts the signatures out of the given buffer, in place
+     * 
+     * @return the new length of the content in the buffer
+     */
+    static int removeSignatures(byte[] content, int length, List<byte[]> starts, byte[] end) {
+        int read = 0;
+        int write = 0;
+        while (read < length) {
+            byte b = content[read];
+            if (b == '<') {
+                int signatureEnd = getSignatureEnd(content, length, read, starts, end);
+                if (signatureEnd != -1) {
+                    read = signatureEnd;
+                    if (read < length && content[read] == '\n') {
+                        read++;
+                    }
+                    continue;
+                }
+            }
+
+            content[write++] = b;
+            read++;
+        }
+        return write;
+    }
+
+    /**
+     * If there is a signature at the given position, gets the position just
+     * after it, otherwise returns -1
+     */
+    private static int getSignatureEnd(byte[] content, int length, int position,
+            List<byte[]> starts, byte[] end) {
+        for (byte[] start : starts) {
+            if (!matches(content, length, position, start)) {
+                continue;
+            }
+
+            // Signatures never span lines
+            for (int i = position + start.length; i < length && content[i] != '\n'; i++) {
+                if (matches(content, length, i, end)) {
+                    return i + end.length;
+                }
+            }
+        }
+        return -1;
+    }
+
+    static boolean matches(byte[] content, int length, int position, byte[] pattern) {
+        if (position + pattern.length > length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (content[position + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,8 +1,27 @@
 package press;
 
 public class ScriptRequestHandler extends RequestHandler {
-    private SourceFileManager srcManager = new ScriptSourceFileManager();
-    private CompressedFileManager compressManager = new ScriptCompressedFileManager();
+    // The markup on either side of the src attribute, built once from the
+    // configuration when the application starts
+    private static String tagStart;
+    private static final String TAG_ATTRIBUTES = "\" type=\"text/javascript\""
+            + " language=\"javascript\" charset=\"utf-8\"";
+    private static final String TAG_END = "></script>\n";
+
+    private SourceFileManager srcManager;
+    private CompressedFileManager compressManager;
+
+    public ScriptRequestHandler() {
+        this(RequestManager.DEFAULT_BUNDLE);
+    }
+
+    public ScriptRequestHandler(String bundle) {
+        super(bundle);
+    }
+
+    static void configure() {
+        tagStart = "<script src=\"" + PluginConfig.contentHostingDomain;
+    }
 
     @Override
     public String getCompressedUrl(String requestKey) {
@@ -10,19 +29,47 @@ public class ScriptRequestHandler extends RequestHandler {
     }
 
     @Override
-    public String getTag(String src) {
-        return "<script src=\"" + press.PluginConfig.contentHostingDomain + src
-                + "\" type=\"text/javascript\" language=\"javascript\" charset=\"utf-8\">"
-                + "</script>\n";
+    void appendTag(StringBuilder out, String src, String attributes) {
+        out.append(tagStart).append(src).append(TAG_ATTRIBUTES);
+        if (attributes != null) {
+            out.append(attributes);
+        }
+        out.append(TAG_END);
+    }
+
+    @Override
+    String getInlineStart() {
+        return "<script type=\"text/javascript\">";
+    }
+
+    @Override
+    String getInlineEnd() {
+        return "</script>\n";
+    }
+
+    @Override
+    String getPreloadType() {
+        return "script";
     }
 
     @Override
     protected SourceFileManager getSourceManager() {
+        if (srcManager == null) {
+            srcManager = new ScriptSourceFileManager(bundle);
+        }
         return srcManager;
     }
 
+    @Override
+    protected boolean hasSourceManager() {
+        return srcManager != null;
+    }
+
     @Override
     protected CompressedFileManager getCompressedFileManager() {
+        if (compressManager == null) {
+            compressManager = new ScriptCompressedFileManager();
+        }
         return compressManager;
     }
 
@@ -2,7 +2,13 @@ package press;
 
 public class ScriptSourceFileManager extends SourceFileManager {
     public ScriptSourceFileManager() {
-        super("JavaScript", ScriptCompressor.EXTENSION, "#{press.script}",
-                "#{press.compressed-script}", "<!-- press-js: ", " -->", PluginConfig.js.srcDir);
+        this(RequestManager.DEFAULT_BUNDLE);
+    }
+
+    public ScriptSourceFileManager(String bundle) {
+        super("JavaScript", ScriptCompressor.EXTENSION, getTagName("#{press.script}", bundle),
+                getTagName("#{press.compressed-script}", bundle),
+                getSignatureStart("press-js", bundle), SIGNATURE_END_STRING,
+                PluginConfig.js.srcDir, bundle);
     }
 }
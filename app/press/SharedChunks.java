@@ -0,0 +1,230 @@
+package press;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the files that many pages' bundles start with, and splits them out
+ * into a shared chunk, so that the browser downloads them once rather than
+ * once per page.
+ * 
+ * Chunks are always a prefix of the bundles that use them, so that including
+ * the chunk followed by the rest of the bundle keeps the files in the same
+ * order. The chunk for a bundle is the longest prefix that enough of the
+ * bundles seen so far start with. It depends on which bundles have been
+ * seen, not the order they were seen in, so that servers that have served
+ * the same pages use the same chunks. As more bundles are seen, a bundle may
+ * move to a longer chunk, but the files in a chunk never change, so the
+ * browser's cached copy stays valid.
+ */
+public class SharedChunks {
+    // The number of bundles remembered before they are all forgotten
+    static final int MAX_BUNDLES = 2000;
+
+    public static class Chunk {
+        // The absolute paths of the files in the chunk, in order
+        public final List<String> files;
+
+        // The keys of the bundles that use the chunk
+        final Map<String, Boolean> bundles = new ConcurrentHashMap<String, Boolean>();
+
+        // The total size of the source files in the chunk
+        final long sourceBytes;
+
+        Chunk(List<String> files) {
+            this.files = Collections.unmodifiableList(new ArrayList<String>(files));
+            long bytes = 0;
+            for (String path : files) {
+                bytes += new File(path).length();
+            }
+            this.sourceBytes = bytes;
+        }
+
+        public int getBundleCount() {
+            return bundles.size();
+        }
+
+        /**
+         * The number of bytes of source files the browser doesn't download
+         * again because the bundles share the chunk
+         */
+        public long getBytesSaved() {
+            return Math.max(0, bundles.size() - 1) * sourceBytes;
+        }
+    }
+
+    // Recorded for bundles that have been checked and have no chunk
+    private static final Chunk NO_CHUNK = new Chunk(Collections.<String> emptyList());
+
+    // Orders bundles by their files, so that bundles starting with the same
+    // files are next to each other
+    private static final Comparator<List<String>> FILE_ORDER = new Comparator<List<String>>() {
+        public int compare(List<String> a, List<String> b) {
+            int length = Math.min(a.size(), b.size());
+            for (int i = 0; i < length; i++) {
+                int result = a.get(i).compareTo(b.get(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return a.size() - b.size();
+        }
+    };
+
+    /**
+     * The chunks and bundles of one type of file in one named bundle, eg the
+     * default JavaScript bundle
+     */
+    static class Group {
+        // The chunk decided on for each bundle, by request key, so that the
+        // chunk is only worked out when a new bundle is seen
+        final ConcurrentMap<String, Chunk> decisions = new ConcurrentHashMap<String, Chunk>();
+
+        // The files in each bundle that has been seen, by request key
+        final Map<String, List<String>> bundles = new HashMap<String, List<String>>();
+
+        // The chunks in use, by their files
+        final Map<List<String>, Chunk> chunks = new HashMap<List<String>, Chunk>();
+        volatile List<Chunk> chunkList = Collections.emptyList();
+
+        /**
+         * Records a bundle that hasn't been seen before, and works out the
+         * chunks again
+         */
+        synchronized Chunk decide(String requestKey, List<String> paths) {
+            // Another thread may have just decided
+            Chunk decided = decisions.get(requestKey);
+            if (decided != null) {
+                return decided;
+            }
+
+            if (bundles.size() >= MAX_BUNDLES) {
+                decisions.clear();
+                bundles.clear();
+                chunks.clear();
+            }
+            bundles.put(requestKey, paths);
+            assignChunks();
+            return decisions.get(requestKey);
+        }
+
+        /**
+         * Gives each bundle the longest prefix that it and enough other
+         * bundles start with, and that leaves some files in each of them
+         */
+        private void assignChunks() {
+            List<Map.Entry<String, List<String>>> sorted;
+            sorted = new ArrayList<Map.Entry<String, List<String>>>(bundles.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, List<String>>>() {
+                public int compare(Map.Entry<String, List<String>> a,
+                        Map.Entry<String, List<String>> b) {
+                    return FILE_ORDER.compare(a.getValue(), b.getValue());
+                }
+            });
+
+            // The bundles that start with the same prefix are next to each
+            // other, so look at each run of the minimum number of bundles
+            int minBundles = PluginConfig.sharedChunksMinBundles;
+            int[] lengths = new int[sorted.size()];
+            for (int i = 0; minBundles >= 2 && i + minBundles <= sorted.size(); i++) {
+                int last = i + minBundles - 1;
+                int length = getCommonPrefixLength(sorted.get(i).getValue(), sorted.get(last)
+                        .getValue());
+                for (int j = i; j <= last; j++) {
+                    length = Math.min(length, sorted.get(j).getValue().size() - 1);
+                }
+                for (int j = i; j <= last; j++) {
+                    lengths[j] = Math.max(lengths[j], length);
+                }
+            }
+
+            Map<List<String>, Chunk> assigned = new HashMap<List<String>, Chunk>();
+            for (int i = 0; i < sorted.size(); i++) {
+                String requestKey = sorted.get(i).getKey();
+                if (lengths[i] < PluginConfig.sharedChunksMinFiles) {
+                    decisions.put(requestKey, NO_CHUNK);
+                    continue;
+                }
+
+                List<String> prefix = sorted.get(i).getValue().subList(0, lengths[i]);
+                Chunk chunk = assigned.get(prefix);
+                if (chunk == null) {
+                    chunk = chunks.get(prefix);
+                    if (chunk == null) {
+                        chunk = new Chunk(prefix);
+                        PressLogger.trace("Created shared chunk of %d files", lengths[i]);
+                    } else {
+                        chunk.bundles.clear();
+                    }
+                    assigned.put(chunk.files, chunk);
+                }
+                chunk.bundles.put(requestKey, true);
+                decisions.put(requestKey, chunk);
+            }
+
+            chunks.clear();
+            chunks.putAll(assigned);
+            chunkList = Collections.unmodifiableList(new ArrayList<Chunk>(assigned.values()));
+        }
+    }
+
+    private static final ConcurrentMap<String, Group> groups =
+            new ConcurrentHashMap<String, Group>();
+
+    /**
+     * Records the files in the bundle, and gets the chunk the bundle should
+     * be split into, or null if it shouldn't be split
+     * 
+     * @param group
+     *            the type of file and bundle name, eg ".js deferred"
+     * @param requestKey
+     *            the key of the bundle
+     * @param paths
+     *            the absolute paths of the files in the bundle, in order
+     */
+    public static Chunk getChunk(String group, String requestKey, List<String> paths) {
+        Group chunkGroup = groups.get(group);
+        if (chunkGroup == null) {
+            groups.putIfAbsent(group, new Group());
+            chunkGroup = groups.get(group);
+        }
+
+        Chunk chunk = chunkGroup.decisions.get(requestKey);
+        if (chunk == null) {
+            chunk = chunkGroup.decide(requestKey, paths);
+        }
+        return chunk == NO_CHUNK ? null : chunk;
+    }
+
+    private static int getCommonPrefixLength(List<String> a, List<String> b) {
+        int length = Math.min(a.size(), b.size());
+        for (int i = 0; i < length; i++) {
+            if (!a.get(i).equals(b.get(i))) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Gets all the chunks that are in use
+     */
+    public static List<Chunk> getChunks() {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (Group group : groups.values()) {
+            chunks.addAll(group.chunkList);
+        }
+        return chunks;
+    }
+
+    public static void clear() {
+        groups.clear();
+    }
+}
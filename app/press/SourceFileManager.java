@@ -19,6 +19,9 @@ import play.vfs.VirtualFile;
 import press.io.FileIO;
 
 public abstract class SourceFileManager extends PlayPlugin {
+    // The end of a file request signature, the same for all types of file
+    static final String SIGNATURE_END_STRING = " -->";
+    static final byte[] SIGNATURE_END = getBytes(SIGNATURE_END_STRING);
 
     // File type, eg "JavaScript"
     String fileType;
@@ -41,6 +44,9 @@ public abstract class SourceFileManager extends PlayPlugin {
     // Directory where the source files are read from, eg "/public/javascripts"
     String srcDir;
 
+    // The name of the bundle the files are added to
+    String bundle;
+
     // The key used to identify this request
     String requestKey = null;
 
@@ -51,11 +57,26 @@ public abstract class SourceFileManager extends PlayPlugin {
     // The list of files compressed as part of this request
     Map<String, FileInfo> fileInfos;
 
+    // The names of the files in the order they were added, and a description
+    // of the templates and files used to look up the order they appear in
+    // the response
+    List<String> executionOrder;
+    StringBuilder orderKey;
+    String lastTemplates;
+
     public SourceFileManager(String fileType, String extension, String tagName,
             String compressedTagName, String pressRequestStart, String pressRequestEnd,
             String srcDir) {
+        this(fileType, extension, tagName, compressedTagName, pressRequestStart, pressRequestEnd,
+                srcDir, RequestManager.DEFAULT_BUNDLE);
+    }
 
-        this.fileInfos = new HashMap<String, FileInfo>();
+    public SourceFileManager(String fileType, String extension, String tagName,
+            String compressedTagName, String pressRequestStart, String pressRequestEnd,
+            String srcDir, String bundle) {
+
+        // Sized so that pages with a lot of files don't cause it to resize
+        this.fileInfos = new HashMap<String, FileInfo>(64);
         this.currentResponse = Response.current();
 
         this.fileType = fileType;
@@ -65,6 +86,29 @@ public abstract class SourceFileManager extends PlayPlugin {
         this.tagName = tagName;
         this.compressedTagName = compressedTagName;
         this.srcDir = PluginConfig.addTrailingSlash(srcDir);
+        this.bundle = bundle;
+    }
+
+    /**
+     * Gets the name of the tag as used for the given bundle, eg
+     * "#{press.compressed-script bundle:'deferred'}"
+     */
+    protected static String getTagName(String tagName, String bundle) {
+        if (RequestManager.DEFAULT_BUNDLE.equals(bundle)) {
+            return tagName;
+        }
+        return tagName.substring(0, tagName.length() - 1) + " bundle:'" + bundle + "'}";
+    }
+
+    /**
+     * Gets the start of the file request signature for the given bundle, eg
+     * "<!-- press-js: " or "<!-- press-js deferred: "
+     */
+    protected static String getSignatureStart(String signatureName, String bundle) {
+        if (RequestManager.DEFAULT_BUNDLE.equals(bundle)) {
+            return "<!-- " + signatureName + ": ";
+        }
+        return "<!-- " + signatureName + " " + bundle + ": ";
     }
 
     public String getTagName() {
@@ -76,12 +120,22 @@ public abstract class SourceFileManager extends PlayPlugin {
     }
 
     /**
-     * Adds a file to the list of files to be compressed
+     * Adds a file to the list of files to be compressed. If compress is null,
+     * the file is compressed unless it appears to be minified already.
      * 
      * @return the file request signature to be output in the HTML
      */
-    public String add(String fileName, boolean compress) {
-        if (compress) {
+    public String add(String fileName, Boolean compress) {
+        addFile(fileName, checkFileExists(fileName), compress);
+        return getFileRequestSignature(fileName);
+    }
+
+    /**
+     * Adds a file that has already been checked to exist to the list of files
+     * to be compressed
+     */
+    void addFile(String fileName, VirtualFile file, Boolean compress) {
+        if (compress == null || compress) {
             PressLogger.trace("Adding %s to output", fileName);
         } else {
             PressLogger.trace("Adding uncompressed file %s to output", fileName);
@@ -92,9 +146,19 @@ public abstract class SourceFileManager extends PlayPlugin {
         }
 
         // Add the file to the list of files to be compressed
-        fileInfos.put(fileName, new FileInfo(compress, checkFileExists(fileName)));
+        fileInfos.put(fileName, createFileInfo(compress, file));
 
-        return getFileRequestSignature(fileName);
+        if (PluginConfig.rememberFileOrder) {
+            if (executionOrder == null) {
+                executionOrder = new ArrayList<String>(64);
+                orderKey = new StringBuilder(2048).append(extension).append(' ').append(bundle)
+                        .append('\n');
+            }
+            String templates = FileOrderMemory.getTemplates();
+            FileOrderMemory.appendToKey(orderKey, lastTemplates, templates, fileName);
+            executionOrder.add(fileName);
+            lastTemplates = templates;
+        }
     }
 
     /**
@@ -121,22 +185,60 @@ public abstract class SourceFileManager extends PlayPlugin {
      * of files we should always return the same compressed javascript or css.
      */
     public String getRequestKey(Map<String, FileInfo> fileInfoMap) {
-        String key = "";
+        StringBuilder key = new StringBuilder(fileInfoMap.size() * 48);
+        boolean includeLastModified = PluginConfig.cache.equals(CachingStrategy.Change);
         for (Entry<String, FileInfo> entry : fileInfoMap.entrySet()) {
-            key += entry.getKey();
+            key.append(entry.getKey());
             // If we use the 'Change' caching strategy, make the modified
             // timestamp of each file part of the key.
-            if (PluginConfig.cache.equals(CachingStrategy.Change)) {
-                key += entry.getValue().getLastModified();
+            if (includeLastModified) {
+                key.append(getFileVersion(entry.getValue()));
             }
         }
 
+        return hashRequestKey(key);
+    }
+
+    /**
+     * Gets the request key for a list of files in the order they will be
+     * compressed, eg part of the files added to compression
+     */
+    public String getRequestKey(List<FileInfo> fileList) {
+        StringBuilder key = new StringBuilder(fileList.size() * 64);
+        boolean includeLastModified = PluginConfig.cache.equals(CachingStrategy.Change);
+        for (FileInfo fileInfo : fileList) {
+            key.append(fileInfo.file.getAbsolutePath());
+            if (includeLastModified) {
+                key.append(getFileVersion(fileInfo));
+            }
+        }
+
+        return hashRequestKey(key);
+    }
+
+    private String hashRequestKey(StringBuilder key) {
         // Get a hash of the url to keep it short
-        String hashed = Crypto.passwordHash(key);
+        String hashed = Crypto.passwordHash(key.toString());
         return FileIO.lettersOnly(hashed) + extension;
     }
 
-    public void saveFileList() {
+    /**
+     * The version of the file, which also changes when files it depends on
+     * change, eg files imported by a stylesheet
+     */
+    private long getFileVersion(FileInfo fileInfo) {
+        return CompressorEngines.get(fileInfo.file.getName(), extension).getLastModified(
+                fileInfo.file);
+    }
+
+    /**
+     * Saves the list of files added to compression in the order in which they
+     * appear in the response
+     * 
+     * @return the ordered list of files, or null if there was no request for
+     *         compressed source in the template
+     */
+    public List<FileInfo> saveFileList() {
         // If the request key has not been set, that means there was no request
         // for compressed source anywhere in the template file, so we don't
         // need to generate anything
@@ -154,23 +256,64 @@ public abstract class SourceFileManager extends PlayPlugin {
                 throw new PressException(msg);
             }
 
-            return;
+            return null;
         }
 
         // The press tag may not always have been executed by the template
         // engine in the same order that the resulting <script> tags would
         // appear in the HMTL output. So here we scan the output to figure out
-        // in what order the <script> tags should actually be output.
-        long timeStart = System.currentTimeMillis();
-        List<FileInfo> orderedFileNames = getFileListOrder();
-        long timeAfter = System.currentTimeMillis();
-        PressLogger.trace("Time to scan response for %s files for '%s': %d milli-seconds",
-                fileType, Request.current().url, (timeAfter - timeStart));
+        // in what order the <script> tags should actually be output, unless
+        // we've seen the same templates add the same files before.
+        List<FileInfo> orderedFileNames = getRememberedFileListOrder();
+        if (orderedFileNames == null) {
+            long timeStart = System.currentTimeMillis();
+            orderedFileNames = getFileListOrder();
+            long timeAfter = System.currentTimeMillis();
+            PressLogger.trace("Time to scan response for %s files for '%s': %d milli-seconds",
+                    fileType, Request.current().url, (timeAfter - timeStart));
+        }
 
         // Add the list of files to the cache.
         // When the server receives a request for the compressed file, it will
         // retrieve the list of files and compress them.
         addFileListToCache(requestKey, orderedFileNames);
+        return orderedFileNames;
+    }
+
+    /**
+     * Gets the order of the files in the response from the order observed the
+     * last time the same templates added the same files, or null if it's not
+     * known
+     */
+    List<FileInfo> getRememberedFileListOrder() {
+        if (executionOrder == null) {
+            return null;
+        }
+
+        int[] order = FileOrderMemory.get(orderKey.toString());
+        if (order == null || order.length != executionOrder.size()) {
+            return null;
+        }
+
+        // Make sure the files still appear in the response in the remembered
+        // order, eg in case a template has changed. Looking for each
+        // signature after the previous one is much cheaper than scanning the
+        // response for all of them.
+        byte[] content = currentResponse.out.toByteArray();
+        int position = 0;
+        List<FileInfo> filesInOrder = new ArrayList<FileInfo>(order.length);
+        for (int index : order) {
+            String fileName = executionOrder.get(index);
+            byte[] signature = getBytes(getFileRequestSignature(fileName));
+            position = ResponseRewriter.indexOf(content, position, content.length, signature);
+            if (position == -1) {
+                PressLogger.trace("Remembered file order no longer matches the response");
+                return null;
+            }
+            position += signature.length;
+            filesInOrder.add(fileInfos.get(fileName));
+        }
+        return filesInOrder;
     }
 
     public List<FileInfo> getFileListOrder() {
@@ -202,6 +345,9 @@ public abstract class SourceFileManager extends PlayPlugin {
             filesInOrder.add(fileInfos.get(fileName));
         }
 
+        if (executionOrder != null) {
+            FileOrderMemory.put(orderKey.toString(), executionOrder, namesInOrder);
+        }
         return filesInOrder;
     }
 
@@ -217,15 +363,22 @@ public abstract class SourceFileManager extends PlayPlugin {
         Cache.safeSet(cacheKey, newList, PluginConfig.compressionKeyStorageTime);
     }
 
-    public String addSingleFile(String fileName, boolean compress) {
+    public String addSingleFile(String fileName, Boolean compress) {
         VirtualFile file = checkFileExists(fileName);
         Map<String, FileInfo> files = new HashMap<String, FileInfo>(1);
-        files.put(fileName, new FileInfo(compress, file));
+        files.put(fileName, createFileInfo(compress, file));
         String cacheKey = getRequestKey(files);
         addFileListToCache(cacheKey, files.values());
         return cacheKey;
     }
 
+    private static FileInfo createFileInfo(Boolean compress, VirtualFile file) {
+        if (compress == null) {
+            return new FileInfo(true, PluginConfig.detectMinified, file);
+        }
+        return new FileInfo(compress, file);
+    }
+
     /**
      * Get the content of the response sent to the client as a String
      */
@@ -241,6 +394,26 @@ public abstract class SourceFileManager extends PlayPlugin {
         return pressRequestStart + fileName + pressRequestEnd;
     }
 
+    byte[] getSignatureStart() {
+        return getBytes(pressRequestStart);
+    }
+
+    boolean hasFiles() {
+        return !fileInfos.isEmpty();
+    }
+
+    static byte[] getBytes(String markup) {
+        try {
+            return markup.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    void appendFileRequestSignature(StringBuilder out, String fileName) {
+        out.append(pressRequestStart).append(fileName).append(pressRequestEnd);
+    }
+
     protected List<String> getFilesInResponse(String content) {
         List<String> filesInOrder = new ArrayList<String>();
 
@@ -1,6 +1,7 @@
 package press;
 
 import java.io.PrintStream;
+import java.io.StringWriter;
 import java.util.Date;
 
 import play.Play;
@@ -35,10 +36,27 @@ public class StaticAssetManager {
             }
             return true;
         }
+
+        // Client-side templates are compiled to JavaScript
+        if (file.getName().endsWith(".jst")) {
+            response.contentType = "text/javascript";
+            try {
+                StringWriter out = new StringWriter();
+                new ScriptCompressor().compress(file.getRealFile(), out, false,
+                        PluginConfig.maxFileCompressionTimeMillis);
+                response.print(out.toString());
+            } catch (Exception e) {
+                response.status = 500;
+                response.print("Template processing failed:\n");
+                e.printStackTrace(new PrintStream(response.out));
+            }
+            return true;
+        }
         return false;
     }
 
-    private void handleResponse(VirtualFile file, Request request, Response response) {
+    private void handleResponse(VirtualFile file, Request request, Response response)
+            throws Exception {
         long lastModified = StyleCompressor.lessEngine.latestModified(file.getRealFile());
         final String etag = "\"" + lastModified + "-" + file.hashCode() + "\"";
 
@@ -61,9 +79,14 @@ public class StaticAssetManager {
     }
 
     private void handleOk(Request request, Response response, VirtualFile file, String etag,
-            long lastModified) {
+            long lastModified) throws Exception {
+        // The Less engine can only compile one file at a time, so this waits
+        // for any compression using it to finish
+        StringWriter out = new StringWriter();
+        new StyleCompressor().compress(file.getRealFile(), out, false,
+                PluginConfig.maxFileCompressionTimeMillis);
         response.status = 200;
-        response.print(StyleCompressor.lessEngine.get(file.getRealFile(), false));
+        response.print(out.toString());
         response.setHeader("Last-Modified",
                 Utils.getHttpDateFormatter().format(new Date(lastModified)));
         response.setHeader("ETag", etag);
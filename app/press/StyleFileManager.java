@@ -2,8 +2,13 @@ package press;
 
 public class StyleFileManager extends SourceFileManager {
     public StyleFileManager() {
-        super("CSS", StyleCompressor.EXTENSION, "#{press.stylesheet}",
-                "#{press.compressed-stylesheet}", "<!-- press-css: ", " -->",
-                PluginConfig.css.srcDir);
+        this(RequestManager.DEFAULT_BUNDLE);
+    }
+
+    public StyleFileManager(String bundle) {
+        super("CSS", StyleCompressor.EXTENSION, getTagName("#{press.stylesheet}", bundle),
+                getTagName("#{press.compressed-stylesheet}", bundle),
+                getSignatureStart("press-css", bundle), SIGNATURE_END_STRING,
+                PluginConfig.css.srcDir, bundle);
     }
 }
@@ -1,8 +1,28 @@
 package press;
 
 public class StyleRequestHandler extends RequestHandler {
-    private SourceFileManager srcManager = new StyleFileManager();
-    private CompressedFileManager compressManager = new StyleCompressedFileManager();
+    // The markup on either side of the href attribute, built once from the
+    // configuration when the application starts
+    private static String tagStart;
+    private static final String TAG_ATTRIBUTES = "\" rel=\"stylesheet\""
+            + " type=\"text/css\" charset=\"utf-8\"";
+    private static String tagEnd;
+
+    private SourceFileManager srcManager;
+    private CompressedFileManager compressManager;
+
+    public StyleRequestHandler() {
+        this(RequestManager.DEFAULT_BUNDLE);
+    }
+
+    public StyleRequestHandler(String bundle) {
+        super(bundle);
+    }
+
+    static void configure() {
+        tagStart = "<link href=\"" + PluginConfig.contentHostingDomain;
+        tagEnd = ">" + (PluginConfig.htmlCompatible ? "" : "</link>") + "\n";
+    }
 
     @Override
     public String getCompressedUrl(String requestKey) {
@@ -10,19 +30,47 @@ public class StyleRequestHandler extends RequestHandler {
     }
 
     @Override
-    public String getTag(String src) {
-        return "<link href=\"" + press.PluginConfig.contentHostingDomain + src
-                + "\" rel=\"stylesheet\" type=\"text/css\" charset=\"utf-8\">"
-                + (press.PluginConfig.htmlCompatible ? "" : "</link>") + "\n";
+    void appendTag(StringBuilder out, String src, String attributes) {
+        out.append(tagStart).append(src).append(TAG_ATTRIBUTES);
+        if (attributes != null) {
+            out.append(attributes);
+        }
+        out.append(tagEnd);
+    }
+
+    @Override
+    String getInlineStart() {
+        return "<style type=\"text/css\">";
+    }
+
+    @Override
+    String getInlineEnd() {
+        return "</style>\n";
+    }
+
+    @Override
+    String getPreloadType() {
+        return "style";
     }
 
     @Override
     protected SourceFileManager getSourceManager() {
+        if (srcManager == null) {
+            srcManager = new StyleFileManager(bundle);
+        }
         return srcManager;
     }
 
+    @Override
+    protected boolean hasSourceManager() {
+        return srcManager != null;
+    }
+
     @Override
     protected CompressedFileManager getCompressedFileManager() {
+        if (compressManager == null) {
+            compressManager = new StyleCompressedFileManager();
+        }
         return compressManager;
     }
 
@@ -0,0 +1,52 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import press.io.FileIO;
+
+import com.yahoo.platform.yui.compressor.CssCompressor;
+
+/**
+ * Compresses CSS with the YUI compressor
+ */
+public class YuiStyleEngine implements CompressorEngine {
+
+    public void compress(File sourceFile, Writer out, boolean compress) throws IOException {
+        // Include any local CSS files imported by the file, and rewrite the
+        // urls of any assets it references
+        if (CssImports.needsProcessing(sourceFile)) {
+            compress(new StringReader(CssImports.flatten(sourceFile)), out, compress);
+            return;
+        }
+
+        compress(FileIO.getReader(sourceFile), out, compress);
+    }
+
+    static void compress(Reader in, Writer out, boolean compress) throws IOException {
+        if (compress) {
+            // Compress the CSS
+            CssCompressor compressor = new CssCompressor(in);
+            compressor.compress(out, PluginConfig.css.lineBreak);
+        } else {
+            // If the file should not be compressed, just copy it
+            FileIO.write(in, out);
+        }
+    }
+
+    public long getLastModified(File sourceFile) {
+        // The output also changes when any file it imports changes
+        return CssImports.latestModified(sourceFile);
+    }
+
+    public boolean canPassThrough() {
+        return true;
+    }
+
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
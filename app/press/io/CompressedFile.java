@@ -1,10 +1,10 @@
 package press.io;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
 
-import press.PluginConfig;
-
 public abstract class CompressedFile {
     private String fileKey;
 
@@ -17,19 +17,11 @@ public abstract class CompressedFile {
     }
 
     public static CompressedFile create(String fileKey, String compressedDir) {
-        if (PluginConfig.isInMemoryStorage()) {
-            return new InMemoryCompressedFile(fileKey);
-        }
-
-        return new OnDiskCompressedFile(fileKey, compressedDir);
+        return CompressedFileStores.open(fileKey, compressedDir);
     }
 
     public static int clearCache(String compressedDir, String extension) {
-        if (PluginConfig.isInMemoryStorage()) {
-            return InMemoryCompressedFile.clearMemoryCache(extension);
-        }
-
-        return OnDiskCompressedFile.clearFileCache(compressedDir, extension);
+        return CompressedFileStores.clear(compressedDir, extension);
     }
     
     public abstract InputStream inputStream();
@@ -40,7 +32,41 @@ public abstract class CompressedFile {
 
     public abstract Writer startWrite();
 
+    /**
+     * Appends the bytes of the given file to the output as they are, without
+     * decoding and re-encoding them. Anything written to the Writer returned
+     * by startWrite() is flushed first, so that the output stays in order.
+     */
+    public abstract void append(File source) throws IOException;
+
     public abstract void close();
 
+    /**
+     * Throws away the output written since startWrite(), leaving the stored
+     * file as it was
+     */
+    public abstract void abort();
+
+    /**
+     * Stores a copy of the content of the given file, which must exist, eg
+     * when a file found in a slower store is copied to a faster one
+     */
+    public abstract void copyFrom(CompressedFile source) throws IOException;
+
     public abstract long length();
+
+    /**
+     * Gets a hash of the content of the file, which is the same for any two
+     * files with the same content, or null if the file doesn't exist
+     */
+    public abstract String getDigest();
+
+    /**
+     * Whether all the component files were compressed, or added uncompressed
+     * for a reason that won't go away by generating the file again. An
+     * incomplete file is not stored.
+     */
+    public boolean isComplete() {
+        return true;
+    }
 }
@@ -0,0 +1,25 @@
+package press.io;
+
+/**
+ * A place compressed files are stored, eg memory or disk. Stores can be
+ * chained, so that a compressed file is looked for in each store in turn.
+ * 
+ * @see CompressedFileStores
+ */
+public interface CompressedFileStore {
+    /**
+     * Gets the compressed file with the given key, which may not exist yet
+     * 
+     * @param compressedDir
+     *            the directory configured for compressed files of this type,
+     *            relative to the application root
+     */
+    CompressedFile open(String fileKey, String compressedDir);
+
+    /**
+     * Deletes the compressed files with the given extension
+     * 
+     * @return the number of files deleted
+     */
+    int clear(String compressedDir, String extension);
+}
@@ -0,0 +1,121 @@
+package press.io;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import play.Play;
+import play.exceptions.ConfigurationException;
+import press.PluginConfig;
+import press.PressLogger;
+
+/**
+ * The chain of stores that compressed files are kept in, fastest first, eg
+ * press.storage=memory,disk,shared
+ * 
+ * A compressed file is looked for in each store in turn, and when it's found
+ * it is copied to the faster stores. A newly generated compressed file is
+ * written to every store. As well as the built-in stores, the chain can
+ * contain the name of a class that implements CompressedFileStore.
+ */
+public class CompressedFileStores {
+    // Compressed files are kept in Play's cache
+    public static final String MEMORY = "memory";
+
+    // Compressed files are kept in the compressed directories
+    public static final String DISK = "disk";
+
+    // Compressed files are kept in a directory shared with other servers,
+    // standing in for a shared store such as an object store
+    public static final String SHARED = "shared";
+
+    private static List<CompressedFileStore> stores = Collections.emptyList();
+    private static boolean usesDisk;
+
+    public static void configure() {
+        List<CompressedFileStore> configured = new ArrayList<CompressedFileStore>();
+        boolean disk = false;
+        for (String name : PluginConfig.storage.split(",")) {
+            name = name.trim();
+            if (name.length() == 0) {
+                continue;
+            }
+
+            PressLogger.trace("Storing compressed files in %s", name);
+            if (name.equals(MEMORY)) {
+                configured.add(new InMemoryCompressedFile.Store());
+            } else if (name.equals(DISK)) {
+                configured.add(new OnDiskCompressedFile.Store());
+                disk = true;
+            } else if (name.equals(SHARED)) {
+                configured.add(new OnDiskCompressedFile.SharedStore(getSharedDir()));
+            } else {
+                configured.add(createStore(name));
+            }
+        }
+
+        if (configured.isEmpty()) {
+            throw new ConfigurationException("press.storage must list at least one store");
+        }
+        stores = Collections.unmodifiableList(configured);
+        usesDisk = disk;
+    }
+
+    /**
+     * Gets the compressed file with the given key from the chain of stores
+     */
+    public static CompressedFile open(String fileKey, String compressedDir) {
+        List<CompressedFileStore> current = stores;
+        if (current.size() == 1) {
+            return current.get(0).open(fileKey, compressedDir);
+        }
+
+        List<CompressedFile> tiers = new ArrayList<CompressedFile>(current.size());
+        for (CompressedFileStore store : current) {
+            tiers.add(store.open(fileKey, compressedDir));
+        }
+        return new TieredCompressedFile(fileKey, tiers);
+    }
+
+    public static int clear(String compressedDir, String extension) {
+        int count = 0;
+        for (CompressedFileStore store : stores) {
+            count += store.clear(compressedDir, extension);
+        }
+        return count;
+    }
+
+    /**
+     * Whether compressed files are kept in the compressed directories
+     */
+    public static boolean usesDisk() {
+        return usesDisk;
+    }
+
+    private static File getSharedDir() {
+        String path = PluginConfig.store.sharedDir;
+        if (path.length() == 0) {
+            throw new ConfigurationException("press.store.sharedDir must be set to use the "
+                    + SHARED + " store");
+        }
+
+        File dir = new File(path);
+        return dir.isAbsolute() ? dir : Play.getFile(path);
+    }
+
+    private static CompressedFileStore createStore(String className) {
+        try {
+            Class<?> storeClass = Play.classloader.loadClass(className);
+            return (CompressedFileStore) storeClass.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            // The class is fine, but its constructor failed
+            throw new ConfigurationException("Could not create " + className + ": " + e.getCause());
+        } catch (Exception e) {
+            throw new ConfigurationException("press.storage must list " + MEMORY + ", " + DISK
+                    + ", " + SHARED + " or the name of a class that implements "
+                    + CompressedFileStore.class.getName() + ": " + e);
+        }
+    }
+}
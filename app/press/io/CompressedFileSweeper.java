@@ -0,0 +1,221 @@
+package press.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import play.Logger;
+import play.Play;
+import press.PluginConfig;
+import press.PressLogger;
+import press.ScriptCompressor;
+import press.StyleCompressor;
+
+/**
+ * Deletes compressed files from disk that have not been used for a while, or
+ * the least recently used ones when there are too many of them, always keeping
+ * the most recently used ones so that pages cached by browsers still work.
+ */
+public class CompressedFileSweeper {
+    // The name of a content file, a hash of the content in hex digits
+    static final Pattern CONTENT_NAME = Pattern.compile("[0-9a-f]{32}\\..+");
+
+    // Temp files that haven't been written for this long have been left
+    // behind by a server crash
+    static final long ABANDONED_TMP_MILLIS = 60 * 60 * 1000;
+
+    // Lock files of compressed files that don't exist are deleted once they
+    // haven't been locked for this long
+    static final long ABANDONED_LOCK_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static ScheduledExecutorService executor;
+
+    static class ContentFile {
+        final File file;
+        final long lastModified;
+        final long length;
+
+        ContentFile(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+    }
+
+    /**
+     * Starts sweeping the compressed directories in the background, stopping
+     * any sweeping previously started
+     */
+    public static synchronized void start() {
+        stop();
+        if (!CompressedFileStores.usesDisk() || PluginConfig.store.sweepIntervalMillis <= 0
+                || (PluginConfig.store.maxAgeMillis <= 0 && PluginConfig.store.maxBytes <= 0)) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "press-sweeper");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setContextClassLoader(Play.classloader);
+                return thread;
+            }
+        });
+        long interval = PluginConfig.store.sweepIntervalMillis;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep(PluginConfig.js.compressedDir, ScriptCompressor.EXTENSION);
+                    sweep(PluginConfig.css.compressedDir, StyleCompressor.EXTENSION);
+                } catch (Exception e) {
+                    Logger.error(e, "Press: Could not delete old compressed files");
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Deletes the compressed files with the given extension that are too old,
+     * or that don't fit in the maximum size
+     * 
+     * @return the number of compressed files deleted
+     */
+    public static int sweep(String compressedDir, String extension) {
+        File dir = FileIO.getVirtualFile(compressedDir).getRealFile();
+        if (!dir.isDirectory()) {
+            return 0;
+        }
+
+        List<ContentFile> contentFiles = new ArrayList<ContentFile>();
+        List<File> indexFiles = new ArrayList<File>();
+        List<File> lockFiles = new ArrayList<File>();
+        List<File> tmpFiles = new ArrayList<File>();
+        File[] shards = listFiles(dir, extension, contentFiles, indexFiles, lockFiles, tmpFiles);
+        for (File shard : shards) {
+            if (shard.isDirectory()
+                    && shard.getName().length() == OnDiskCompressedFile.SHARD_LENGTH) {
+                listFiles(shard, extension, contentFiles, indexFiles, lockFiles, tmpFiles);
+            }
+        }
+
+        // Most recently used first
+        ContentFile[] byLastUse = contentFiles.toArray(new ContentFile[contentFiles.size()]);
+        Arrays.sort(byLastUse, new Comparator<ContentFile>() {
+            public int compare(ContentFile a, ContentFile b) {
+                return a.lastModified > b.lastModified ? -1 : (a.lastModified == b.lastModified
+                        ? 0 : 1);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        int deleted = 0;
+        Set<String> kept = new HashSet<String>();
+        for (int i = 0; i < byLastUse.length; i++) {
+            ContentFile contentFile = byLastUse[i];
+            totalBytes += contentFile.length;
+            boolean tooOld = PluginConfig.store.maxAgeMillis > 0
+                    && now - contentFile.lastModified > PluginConfig.store.maxAgeMillis;
+            boolean tooBig = PluginConfig.store.maxBytes > 0
+                    && totalBytes > PluginConfig.store.maxBytes;
+            if (i >= PluginConfig.store.keepRecent && (tooOld || tooBig)
+                    && contentFile.file.delete()) {
+                totalBytes -= contentFile.length;
+                deleted++;
+            } else {
+                kept.add(contentFile.file.getName());
+            }
+        }
+
+        // Delete the index files that point to content that no longer exists
+        for (File indexFile : indexFiles) {
+            String digest = OnDiskCompressedFile.readIndex(indexFile);
+            if (digest == null || kept.contains(digest + extension)) {
+                continue;
+            }
+
+            // The content may have been written since the directory was read
+            File content = OnDiskCompressedFile.getShardedFile(dir, digest + extension);
+            if (!content.exists()) {
+                indexFile.delete();
+            }
+        }
+
+        // Lock files that haven't been locked for a while. A compressed file
+        // that exists isn't generated again, so once its generation has had
+        // time to finish its lock file isn't needed. The lock file of one
+        // that no longer exists is kept for longer, as it's more likely to be
+        // generated again.
+        for (File lockFile : lockFiles) {
+            String lockName = lockFile.getName();
+            String key = lockName.substring(0, lockName.length()
+                    - OnDiskCompressedFile.LOCK_SUFFIX.length());
+            File indexFile = new File(lockFile.getParentFile(), key
+                    + OnDiskCompressedFile.INDEX_SUFFIX);
+            long idleMillis = indexFile.exists() ? PluginConfig.maxCompressionTimeMillis
+                    : ABANDONED_LOCK_MILLIS;
+            try {
+                GenerationLock.deleteIfUnused(lockFile, idleMillis);
+            } catch (IOException e) {
+                // Try again next time
+            }
+        }
+
+        // Temp files left behind by a server crash
+        for (File tmpFile : tmpFiles) {
+            if (now - tmpFile.lastModified() > ABANDONED_TMP_MILLIS) {
+                tmpFile.delete();
+            }
+        }
+
+        PressLogger.trace("Deleted %d of %d compressed %s files, %d bytes remain", deleted,
+                byLastUse.length, extension, totalBytes);
+        return deleted;
+    }
+
+    /**
+     * Sorts the files in the directory by type
+     * 
+     * @return all the files in the directory
+     */
+    private static File[] listFiles(File dir, String extension, List<ContentFile> contentFiles,
+            List<File> indexFiles, List<File> lockFiles, List<File> tmpFiles) {
+        String indexExtension = extension + OnDiskCompressedFile.INDEX_SUFFIX;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(extension) && CONTENT_NAME.matcher(name).matches()) {
+                contentFiles.add(new ContentFile(file));
+            } else if (name.endsWith(indexExtension)) {
+                indexFiles.add(file);
+            } else if (name.endsWith(extension + OnDiskCompressedFile.LOCK_SUFFIX)) {
+                lockFiles.add(file);
+            } else if (name.endsWith(".tmp") && name.contains(extension)) {
+                tmpFiles.add(file);
+            }
+        }
+        return files;
+    }
+}
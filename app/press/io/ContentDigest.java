@@ -0,0 +1,52 @@
+package press.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import play.exceptions.UnexpectedException;
+
+/**
+ * Calculates a hash of the content of a file, as hex digits, so that files
+ * with the same content can be recognised without comparing them.
+ */
+public class ContentDigest {
+    public static String of(File file) throws IOException {
+        MessageDigest digest = create();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String of(byte[] bytes) {
+        return toHex(create().digest(bytes));
+    }
+
+    private static MessageDigest create() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                    Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -3,13 +3,18 @@ package press.io;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import play.Play;
 import play.exceptions.UnexpectedException;
@@ -35,15 +40,15 @@ public class FileIO {
      * source directory, throws an exception.
      */
     public static VirtualFile checkFileExists(String fileName, String sourceDirectory) {
-        VirtualFile srcFile = getVirtualFile(sourceDirectory + fileName);
+        SourceFileMetadata srcFile = SourceFileMetadata.get(sourceDirectory + fileName);
 
         // Check the file exists
         if (!srcFile.exists()) {
-            String msg = "Attempt to add file '" + srcFile.getRealFile().getAbsolutePath() + "' ";
+            String msg = "Attempt to add file '" + srcFile.file.getAbsolutePath() + "' ";
             msg += "to compression but file does not exist.";
             throw new PressException(msg);
         }
-        return srcFile;
+        return srcFile.virtualFile;
     }
 
     public static void write(Reader reader, Writer writer) throws IOException {
@@ -54,6 +59,31 @@ public class FileIO {
         }
     }
 
+    /**
+     * Copies the bytes of the given file to the output stream, without
+     * decoding them
+     */
+    public static void transfer(File file, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target;
+            if (out instanceof FileOutputStream) {
+                target = ((FileOutputStream) out).getChannel();
+            } else {
+                target = Channels.newChannel(out);
+            }
+
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     public static Reader getReader(File file) throws IOException {
         return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
     }
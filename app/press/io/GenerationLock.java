@@ -0,0 +1,162 @@
+package press.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import press.PressException;
+
+/**
+ * A lock held while a compressed file is generated, so that only one thread
+ * in one process generates it. The lock is an operating system lock on a lock
+ * file, so it works between processes sharing a directory, and it is released
+ * by the operating system if the process dies.
+ */
+public class GenerationLock {
+    // The first and longest time to wait before trying to get a lock held by
+    // another process again. Threads in this process waiting for a lock are
+    // woken as soon as it's released.
+    static final long MIN_WAIT_MILLIS = 10;
+    static final long MAX_WAIT_MILLIS = 500;
+
+    // Notified whenever a lock held by this process is released
+    private static final Object released = new Object();
+
+    // The paths of the lock files locked by this process. On some systems,
+    // closing any channel on a file releases all the locks this process holds
+    // on it, so a file that's already locked must not be opened again.
+    private static final ConcurrentMap<String, Boolean> lockedPaths =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private final String path;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private GenerationLock(String path, RandomAccessFile lockFile, FileLock lock) {
+        this.path = path;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    /**
+     * Gets the lock on the given file if no other thread or process holds it
+     * 
+     * @return the lock, or null if it's held by another thread or process
+     */
+    public static GenerationLock tryAcquire(File file) throws IOException {
+        // Another thread in this process holds the lock
+        String path = file.getAbsolutePath();
+        if (lockedPaths.putIfAbsent(path, Boolean.TRUE) != null) {
+            return null;
+        }
+
+        RandomAccessFile lockFile = null;
+        FileLock lock = null;
+        try {
+            lockFile = new RandomAccessFile(file, "rw");
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Shouldn't happen, as this process doesn't hold the lock
+        } finally {
+            if (lock == null) {
+                if (lockFile != null) {
+                    lockFile.close();
+                }
+                lockedPaths.remove(path);
+            }
+        }
+
+        if (lock == null) {
+            return null;
+        }
+
+        // The sweeper may have deleted the lock file after we opened it, in
+        // which case another process could lock a new file at the same path
+        GenerationLock acquired = new GenerationLock(path, lockFile, lock);
+        if (!file.exists()) {
+            acquired.release();
+            return null;
+        }
+
+        // Record when the lock was last used, so that the sweeper leaves the
+        // file alone
+        file.setLastModified(System.currentTimeMillis());
+        return acquired;
+    }
+
+    /**
+     * Waits for the lock on the given file
+     * 
+     * @throws PressException
+     *             if the lock isn't released within the given time
+     */
+    public static GenerationLock acquire(File file, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long wait = MIN_WAIT_MILLIS;
+        while (true) {
+            GenerationLock lock = tryAcquire(file);
+            if (lock != null) {
+                return lock;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new PressException("Timeout waiting for compressed file to be generated");
+            }
+
+            synchronized (released) {
+                try {
+                    released.wait(Math.min(wait, remaining));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PressException("Interrupted waiting for compressed file to be "
+                            + "generated");
+                }
+            }
+            wait = Math.min(wait * 2, MAX_WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Deletes the lock file if it has not been locked for the given number of
+     * milli-seconds and no thread or process holds the lock
+     */
+    public static boolean deleteIfUnused(File file, long idleMillis) throws IOException {
+        if (System.currentTimeMillis() - file.lastModified() < idleMillis) {
+            return false;
+        }
+
+        GenerationLock lock = tryAcquire(file);
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            return file.delete();
+        } finally {
+            lock.release();
+        }
+    }
+
+    public void release() {
+        try {
+            try {
+                lock.release();
+            } finally {
+                lockFile.close();
+            }
+        } catch (IOException e) {
+            // The lock is released when the file is closed or the process
+            // ends anyway
+        } finally {
+            lockedPaths.remove(path);
+            synchronized (released) {
+                released.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package press.io;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import press.PressException;
+
+/**
+ * A list of comma separated file name patterns, compiled to regular
+ * expressions. Paths are relative to the source directory.
+ * 
+ * <ul>
+ * <li>* matches any characters in a file or directory name</li>
+ * <li>** matches any characters, including across directories. For example
+ * "widgets/**.js" matches all JavaScript files under "widgets", and
+ * "a/**&#47;b.js" matches "a/b.js", "a/x/b.js", "a/x/y/b.js" etc</li>
+ * <li>? matches any single character in a file or directory name</li>
+ * <li>{a,b} matches either a or b</li>
+ * <li>A pattern starting with ! excludes the files it matches from the
+ * result</li>
+ * </ul>
+ * 
+ * Files matched by each pattern are sorted by US ASCII, and patterns are
+ * applied in order, eg "lib/jquery.js, lib/*.js, app/**.js, !app/test/*.js"
+ * includes jquery.js first, then the rest of lib, then all of app except the
+ * tests. A file matched by more than one pattern is included only once.
+ */
+public class GlobPattern implements SourceFileIndex.Resolver {
+    private static final ConcurrentMap<String, GlobPattern> compiled =
+            new ConcurrentHashMap<String, GlobPattern>();
+
+    static class Part {
+        // Either a path without wildcards, or a regular expression
+        final String literal;
+        final Pattern regex;
+
+        Part(String glob) {
+            if (hasWildcard(glob)) {
+                literal = null;
+                regex = Pattern.compile(toRegex(glob));
+            } else {
+                literal = glob;
+                regex = null;
+            }
+        }
+
+        boolean matches(String relativePath) {
+            if (literal != null) {
+                return literal.equals(relativePath);
+            }
+            return regex.matcher(relativePath).matches();
+        }
+    }
+
+    private final List<Part> includes = new ArrayList<Part>();
+    private final List<Part> excludes = new ArrayList<Part>();
+
+    private GlobPattern(String glob) {
+        for (String pattern : split(glob)) {
+            if (pattern.startsWith("!")) {
+                excludes.add(new Part(pattern.substring(1).trim()));
+            } else {
+                includes.add(new Part(pattern));
+            }
+        }
+    }
+
+    /**
+     * Gets the compiled form of the given pattern
+     */
+    public static GlobPattern compile(String glob) {
+        GlobPattern pattern = compiled.get(glob);
+        if (pattern == null) {
+            pattern = new GlobPattern(glob);
+            compiled.put(glob, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * Whether the given file name needs to be resolved against the source
+     * directory, or is just the name of a single file
+     */
+    public static boolean isGlob(String fileName) {
+        return hasWildcard(fileName) || fileName.indexOf(',') != -1
+                || fileName.startsWith("!");
+    }
+
+    public List<String> resolve(List<String> files) {
+        Set<String> resolved = new LinkedHashSet<String>();
+        for (Part include : includes) {
+            // A file name without wildcards is included whether or not it
+            // exists, so that the user gets an error if it doesn't
+            if (include.literal != null) {
+                resolved.add(include.literal);
+                continue;
+            }
+
+            for (String relativePath : files) {
+                if (include.matches(relativePath)) {
+                    resolved.add(relativePath);
+                }
+            }
+        }
+
+        if (!excludes.isEmpty()) {
+            Iterator<String> it = resolved.iterator();
+            while (it.hasNext()) {
+                String relativePath = it.next();
+                for (Part exclude : excludes) {
+                    if (exclude.matches(relativePath)) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+        }
+
+        return new ArrayList<String>(resolved);
+    }
+
+    static boolean hasWildcard(String glob) {
+        return glob.indexOf('*') != -1 || glob.indexOf('?') != -1 || glob.indexOf('{') != -1;
+    }
+
+    /**
+     * Splits the glob on commas that are not inside braces
+     */
+    static List<String> split(String glob) {
+        List<String> patterns = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                addPattern(patterns, glob.substring(start, i));
+                start = i + 1;
+            }
+        }
+        addPattern(patterns, glob.substring(start));
+        return patterns;
+    }
+
+    private static void addPattern(List<String> patterns, String pattern) {
+        pattern = pattern.trim();
+        if (pattern.length() > 0) {
+            patterns.add(pattern);
+        }
+    }
+
+    static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() * 2);
+        int depth = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // "**/" matches any number of directories, even none
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+                break;
+            case '?':
+                regex.append("[^/]");
+                break;
+            case '{':
+                depth++;
+                regex.append("(?:");
+                break;
+            case '}':
+                if (depth == 0) {
+                    throw new PressException("Unmatched '}' in file pattern '" + glob + "'");
+                }
+                depth--;
+                regex.append(')');
+                break;
+            case ',':
+                regex.append(depth > 0 ? "|" : ",");
+                break;
+            default:
+                if ("\\.[]()^$+|".indexOf(c) != -1) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+        }
+
+        if (depth != 0) {
+            throw new PressException("Unmatched '{' in file pattern '" + glob + "'");
+        }
+        return regex.toString();
+    }
+}
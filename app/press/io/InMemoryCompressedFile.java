@@ -3,6 +3,7 @@ package press.io;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
@@ -11,18 +12,35 @@ import java.io.Writer;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.apache.commons.io.IOUtils;
+
 import play.cache.Cache;
 import play.exceptions.UnexpectedException;
 import press.PluginConfig;
 import press.PressException;
 import press.PressLogger;
 
+/**
+ * A compressed file stored in the cache. The content is stored under the hash
+ * of the content, so that compressed files with the same content are only
+ * stored once, and the hash is stored under the compressed file key.
+ */
 public class InMemoryCompressedFile extends CompressedFile {
+    public static class Store implements CompressedFileStore {
+        public CompressedFile open(String fileKey, String compressedDir) {
+            return new InMemoryCompressedFile(fileKey);
+        }
+
+        public int clear(String compressedDir, String extension) {
+            return clearMemoryCache(extension);
+        }
+    }
+
     private static final String FILE_LIST_KEY = "InMemoryFileList";
-    private InputStream inputStream;
     private Writer writer;
     private ByteArrayOutputStream outputStream;
     private byte[] bytes;
+    private String digest;
     private static final String A_VERY_LONG_TIME = "30d";
 
     public InMemoryCompressedFile(String fileKey) {
@@ -31,17 +49,22 @@ public class InMemoryCompressedFile extends CompressedFile {
 
     @Override
     public boolean exists() {
-        if (inputStream != null) {
+        if (bytes != null) {
             return true;
         }
 
         long startTime = System.currentTimeMillis();
-        bytes = (byte[]) Cache.get(getCacheKey());
+        String currentDigest = (String) Cache.get(getIndexKey(getFileKey()));
+        if (currentDigest == null) {
+            return false;
+        }
+
+        bytes = (byte[]) Cache.get(getContentKey(currentDigest));
         if (bytes != null) {
+            digest = currentDigest;
             long totalTime = System.currentTimeMillis() - startTime;
             PressLogger.trace("Got file of size %d bytes from cache in %d milli-seconds.",
                     bytes.length, totalTime);
-            inputStream = new ByteArrayInputStream(bytes);
             return true;
         }
 
@@ -51,11 +74,12 @@ public class InMemoryCompressedFile extends CompressedFile {
     @Override
     public InputStream inputStream() {
         if (!exists()) {
-            throw new PressException("Can't create InputStream. File with key " + getCacheKey()
+            throw new PressException("Can't create InputStream. File with key " + getFileKey()
                     + " does not exist in cache");
         }
 
-        return inputStream;
+        // Each reader gets its own stream, eg each store the file is copied to
+        return new ByteArrayInputStream(bytes);
     }
 
     @Override
@@ -86,6 +110,17 @@ public class InMemoryCompressedFile extends CompressedFile {
         return writer;
     }
 
+    @Override
+    public void append(File source) throws IOException {
+        if (writer == null) {
+            throw new PressException(
+                    "Output stream has not yet been created. Call getWriter() and write to it.");
+        }
+
+        writer.flush();
+        FileIO.transfer(source, outputStream);
+    }
+
     @Override
     public void close() {
         if (writer == null) {
@@ -101,39 +136,68 @@ public class InMemoryCompressedFile extends CompressedFile {
 
         byte[] outBytes = outputStream.toByteArray();
         PressLogger.trace("Saving file of size %d bytes to cache.", outBytes.length);
-        addFileToCache(getFileKey(), outBytes);
+        addFileToCache(getFileKey(), outBytes, ContentDigest.of(outBytes));
 
         String inProgressKey = getInProgressKey(getFileKey());
         Cache.safeDelete(inProgressKey);
     }
 
+    @Override
+    public void abort() {
+        writer = null;
+        outputStream = null;
+        Cache.safeDelete(getInProgressKey(getFileKey()));
+    }
+
     private static String getInProgressKey(String fileKey) {
         return "in-progress-" + fileKey;
     }
 
-    private String getCacheKey() {
-        return getCacheKey(getFileKey());
+    // The cache key of the hash of the content for the compressed file key
+    private static String getIndexKey(String fileKey) {
+        return "digest-" + fileKey;
     }
 
-    private static String getCacheKey(String fileKey) {
-        return "file-" + fileKey;
+    // The cache key of the content with the given hash
+    private static String getContentKey(String contentDigest) {
+        return "file-" + contentDigest;
     }
 
-    private void addFileToCache(String fileKey, byte[] outBytes) {
+    @Override
+    public void copyFrom(CompressedFile source) throws IOException {
+        InputStream in = source.inputStream();
+        try {
+            addFileToCache(getFileKey(), IOUtils.toByteArray(in), source.getDigest());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void addFileToCache(String fileKey, byte[] outBytes, String newDigest) {
         long startTime = System.currentTimeMillis();
 
         Set<String> fileList = getFileList();
         fileList.add(fileKey);
         Cache.set(FILE_LIST_KEY, fileList, A_VERY_LONG_TIME);
 
-        String cacheKey = getCacheKey(fileKey);
-        if (!Cache.safeSet(cacheKey, outBytes, A_VERY_LONG_TIME)) {
+        // If the same content is already stored, there's no need to store it
+        // again
+        String contentKey = getContentKey(newDigest);
+        if (Cache.get(contentKey) != null) {
+            PressLogger.trace("Compressed file %s has the same content as a stored file",
+                    fileKey);
+        } else if (!Cache.safeSet(contentKey, outBytes, A_VERY_LONG_TIME)) {
             throw new PressException(
                     "Underlying cache implementation could not store compressed file " + fileKey
                             + " in cache");
         }
 
-        inputStream = null;
+        if (!Cache.safeSet(getIndexKey(fileKey), newDigest, A_VERY_LONG_TIME)) {
+            throw new PressException(
+                    "Underlying cache implementation could not store index of compressed file "
+                            + fileKey + " in cache");
+        }
+        digest = newDigest;
         bytes = null;
 
         long totalTime = System.currentTimeMillis() - startTime;
@@ -143,7 +207,11 @@ public class InMemoryCompressedFile extends CompressedFile {
     public static int clearMemoryCache(String extension) {
         Set<String> files = getFileList();
         for (String fileKey : files) {
-            Cache.delete(getCacheKey(fileKey));
+            String contentDigest = (String) Cache.get(getIndexKey(fileKey));
+            if (contentDigest != null) {
+                Cache.delete(getContentKey(contentDigest));
+            }
+            Cache.delete(getIndexKey(fileKey));
             Cache.delete(getInProgressKey(fileKey));
         }
         Cache.delete(FILE_LIST_KEY);
@@ -161,10 +229,15 @@ public class InMemoryCompressedFile extends CompressedFile {
     @Override
     public long length() {
         if (!exists()) {
-            throw new PressException("Can't get length. File with key " + getCacheKey()
+            throw new PressException("Can't get length. File with key " + getFileKey()
                     + " does not exist in cache");
         }
 
         return bytes.length;
     }
+
+    @Override
+    public String getDigest() {
+        return exists() ? digest : null;
+    }
 }
@@ -0,0 +1,77 @@
+package press.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.Writer;
+
+import press.PressException;
+
+/**
+ * A compressed file that was generated with some of the component files added
+ * uncompressed because there was no time to compress them, eg because no
+ * worker was free. It is served to the browsers that were waiting for it, but
+ * it is not stored, so that the file is generated again.
+ */
+public class IncompleteCompressedFile extends CompressedFile {
+    private final byte[] bytes;
+
+    public IncompleteCompressedFile(String fileKey, byte[] bytes) {
+        super(fileKey);
+        this.bytes = bytes;
+    }
+
+    @Override
+    public InputStream inputStream() {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public String name() {
+        return FileIO.getFileNameFromPath(getFileKey());
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public Writer startWrite() {
+        throw new PressException("An incomplete compressed file can't be written");
+    }
+
+    @Override
+    public void append(File source) {
+        throw new PressException("An incomplete compressed file can't be written");
+    }
+
+    @Override
+    public void close() {
+        throw new PressException("An incomplete compressed file can't be written");
+    }
+
+    @Override
+    public void abort() {
+    }
+
+    @Override
+    public void copyFrom(CompressedFile source) {
+        throw new PressException("An incomplete compressed file can't be written");
+    }
+
+    @Override
+    public long length() {
+        return bytes.length;
+    }
+
+    @Override
+    public String getDigest() {
+        return ContentDigest.of(bytes);
+    }
+
+    @Override
+    public boolean isComplete() {
+        return false;
+    }
+}
@@ -3,26 +3,119 @@ package press.io;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 
+import org.apache.commons.io.IOUtils;
+
 import play.exceptions.UnexpectedException;
 import play.vfs.VirtualFile;
 import press.PluginConfig;
 import press.PressException;
 import press.PressLogger;
 
+/**
+ * A compressed file stored in the compressed directory. The content is stored
+ * in a file named after the hash of the content, so that compressed files with
+ * the same content are only stored once. A small index file named after the
+ * compressed file key holds the hash of the content for that key.
+ * 
+ * Files are spread over sub-directories named after the first characters of
+ * the file name, so that no one directory gets too big. The last modified
+ * date of a content file records when it was last used, as content files are
+ * never modified once written.
+ */
 public class OnDiskCompressedFile extends CompressedFile {
+    public static class Store implements CompressedFileStore {
+        public CompressedFile open(String fileKey, String compressedDir) {
+            return new OnDiskCompressedFile(fileKey, compressedDir);
+        }
+
+        public int clear(String compressedDir, String extension) {
+            return clearFileCache(compressedDir, extension);
+        }
+    }
+
+    /**
+     * Keeps compressed files in a directory shared with other servers, eg on
+     * a network file system, standing in for a shared store such as an object
+     * store. Files of all types are kept in the one directory.
+     */
+    public static class SharedStore implements CompressedFileStore {
+        private final File dir;
+
+        public SharedStore(File dir) {
+            this.dir = dir;
+        }
+
+        public CompressedFile open(String fileKey, String compressedDir) {
+            return new OnDiskCompressedFile(fileKey, dir);
+        }
+
+        public int clear(String compressedDir, String extension) {
+            // The files are cleared for every server using the directory.
+            // Content files are never written to once in place, so a server
+            // still reading one is not affected.
+            if (!dir.isDirectory()) {
+                return 0;
+            }
+            return deletePressFilesRecursively(dir, extension);
+        }
+    }
+
+    // Appended to the compressed file key to get the name of the index file
+    static final String INDEX_SUFFIX = ".digest";
+
+    // Appended to the compressed file key to get the name of the lock file
+    static final String LOCK_SUFFIX = ".lock";
+
+    // The number of characters at the start of a file name used as the name
+    // of the sub-directory the file is stored in
+    static final int SHARD_LENGTH = 2;
+
+    // How often the last used date of a content file is updated, in
+    // milli-seconds
+    static final long ACCESS_RESOLUTION_MILLIS = 60 * 60 * 1000;
+
     private Writer writer;
-    private VirtualFile file;
+    private FileOutputStream outputStream;
     private File tmpOutputFile;
 
+    // The lock held while the file is generated
+    private final File lockFile;
+    private GenerationLock lock;
+
+    // The compressed directory, and the file holding the hash of the
+    // content for the compressed file key
+    private final File dir;
+    private final File indexFile;
+
+    // The extension of the compressed file, eg ".js"
+    private final String extension;
+
+    // The file the content is stored in, and the hash of the content, once
+    // it is known
+    private File file;
+    private long fileLastModified;
+    private String digest;
+
     public OnDiskCompressedFile(String filePath, String compressedDir) {
+        this(filePath, FileIO.getVirtualFile(compressedDir).getRealFile());
+    }
+
+    public OnDiskCompressedFile(String filePath, File dir) {
         super(filePath);
-        file = FileIO.getVirtualFile(compressedDir + filePath);
+        this.dir = dir;
+        indexFile = getShardedFile(dir, filePath + INDEX_SUFFIX);
+        lockFile = getShardedFile(dir, filePath + LOCK_SUFFIX);
+        int dot = filePath.lastIndexOf('.');
+        extension = dot == -1 ? "" : filePath.substring(dot);
     }
 
     @Override
@@ -31,17 +124,133 @@ public class OnDiskCompressedFile extends CompressedFile {
             throw new PressException("Can't create InputStream. File does not exist");
         }
 
-        return file.inputstream();
+        try {
+            InputStream in = new FileInputStream(file);
+            recordAccess(file, fileLastModified);
+            return in;
+        } catch (FileNotFoundException e) {
+            throw new UnexpectedException(e);
+        }
     }
 
     @Override
     public String name() {
-        return file.getName();
+        return FileIO.getFileNameFromPath(getFileKey());
     }
 
     @Override
     public boolean exists() {
-        return file.exists();
+        String currentDigest = readIndex(indexFile);
+        if (currentDigest == null) {
+            return false;
+        }
+
+        File content = getContentFile(currentDigest);
+        long lastModified = content.lastModified();
+        if (lastModified == 0) {
+            return false;
+        }
+
+        file = content;
+        fileLastModified = lastModified;
+        digest = currentDigest;
+        return true;
+    }
+
+    @Override
+    public String getDigest() {
+        return exists() ? digest : null;
+    }
+
+    private File getContentFile(String contentDigest) {
+        return getShardedFile(dir, contentDigest + extension);
+    }
+
+    static File getShardedFile(File dir, String name) {
+        String shard = name.substring(0, Math.min(SHARD_LENGTH, name.length()));
+        return new File(new File(dir, shard), name);
+    }
+
+    /**
+     * Records that the content file was used, so that it's not deleted by the
+     * sweeper
+     */
+    private static void recordAccess(File content, long lastModified) {
+        long now = System.currentTimeMillis();
+        if (now - lastModified > ACCESS_RESOLUTION_MILLIS) {
+            content.setLastModified(now);
+        }
+    }
+
+    /**
+     * Reads the hash of the content from the index file, or returns null if
+     * there is no index file
+     */
+    static String readIndex(File index) {
+        if (!index.exists()) {
+            return null;
+        }
+
+        try {
+            InputStream in = new FileInputStream(index);
+            try {
+                String content = IOUtils.toString(in, "utf-8").trim();
+                return content.length() == 0 ? null : content;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // The index was deleted after we checked for it
+            return null;
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Writes the hash of the content to the index file, replacing the file
+     * rather than writing over it so that it's never read half written
+     */
+    private static void writeIndex(File index, String contentDigest) throws IOException {
+        File tmp = File.createTempFile(index.getName() + ".", ".tmp", index.getParentFile());
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(contentDigest.getBytes("utf-8"));
+        } finally {
+            out.close();
+        }
+
+        moveIntoPlace(tmp, index, true);
+    }
+
+    /**
+     * Moves the temporary file to the target path. On file systems where the
+     * move is atomic, the target is never seen half written.
+     * 
+     * @param replace
+     *            whether to replace the target if it exists. Otherwise an
+     *            existing target is left as it is, as it has the same content.
+     */
+    private static void moveIntoPlace(File tmp, File target, boolean replace) {
+        if (tmp.renameTo(target)) {
+            return;
+        }
+
+        // Some file systems can't move a file over an existing one
+        if (target.exists()) {
+            if (!replace) {
+                tmp.delete();
+                return;
+            }
+            target.delete();
+            if (tmp.renameTo(target)) {
+                return;
+            }
+        }
+
+        tmp.delete();
+        throw new PressException("Could not move compressed file output from temporary path\n"
+                + tmp.getAbsolutePath() + "\nto final path\n" + target.getAbsolutePath());
     }
 
     @Override
@@ -51,37 +260,61 @@ public class OnDiskCompressedFile extends CompressedFile {
         }
 
         try {
-            //
-            // We create a temp file to which the output will be written to
-            // first, and then rename it to the target file name (because
-            // compression can take a while)
-            // If the temp file is already being written by another thread, this
-            // method will block until it is complete and then return null
-            //
-            tmpOutputFile = getTmpOutputFile(file);
-            if (tmpOutputFile == null) {
-                return null;
-            }
-
             // Create the directory if it doesn't already exist
-            VirtualFile dir = VirtualFile.open(file.getRealFile().getParent());
-            if (!dir.exists()) {
-                if (!dir.getRealFile().mkdirs()) {
-                    throw new PressException(
-                            "Could not create directory for compressed file output "
-                                    + file.getRealFile().getAbsolutePath());
+            createDir(indexFile.getParentFile());
+
+            // Only one thread, in this or any other process using the same
+            // directory, generates the file at a time. If another one is
+            // generating it, wait for it to finish and use its output,
+            // returning null to say so.
+            GenerationLock acquired = GenerationLock.tryAcquire(lockFile);
+            if (acquired == null) {
+                PressLogger.trace("Waiting for compressed file %s to be generated", name());
+                acquired = GenerationLock.acquire(lockFile, PluginConfig.maxCompressionTimeMillis);
+                if (exists()) {
+                    acquired.release();
+                    return null;
                 }
             }
+            lock = acquired;
 
-            // Return a writer for the temporary file
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpOutputFile),
-                    "UTF-8"));
+            // We create a temp file to which the output will be written to
+            // first, and then move it into place (because compression can take
+            // a while). The name is unique so that a temp file left behind by
+            // a crash is never written to.
+            try {
+                tmpOutputFile = File.createTempFile(getFileKey() + ".", ".tmp",
+                        indexFile.getParentFile());
+                outputStream = new FileOutputStream(tmpOutputFile);
+                writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+            } catch (IOException e) {
+                releaseLock();
+                throw e;
+            }
             return writer;
         } catch (IOException e) {
             throw new UnexpectedException(e);
         }
     }
 
+    private void releaseLock() {
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+    }
+
+    @Override
+    public void append(File source) throws IOException {
+        if (writer == null) {
+            throw new UnexpectedException(
+                    "Writer has not yet been created. Call getWriter() and write to it.");
+        }
+
+        writer.flush();
+        FileIO.transfer(source, outputStream);
+    }
+
     @Override
     public void close() {
         if (writer == null) {
@@ -93,68 +326,106 @@ public class OnDiskCompressedFile extends CompressedFile {
             writer.flush();
             writer.close();
         } catch (IOException e) {
+            releaseLock();
             throw new UnexpectedException(e);
         }
-        
-        // Output was written to a temporary file, so rename it to overwrite the
-        // true destination file.
-        String msg = "Output written to temporary file\n%s\n"
-                + "Moving from tmp path to final path:\n%s";
+
+        // Output was written to a temporary file. If a file with the same
+        // content is already stored, point the index at it and throw the
+        // output away, otherwise move the output to the content file.
         String tmpPath = tmpOutputFile.getAbsolutePath();
-        String finalPath = file.getRealFile().getAbsolutePath();
-        PressLogger.trace(msg, tmpPath, finalPath);
+        try {
+            String newDigest = ContentDigest.of(tmpOutputFile);
+            File content = getContentFile(newDigest);
+            long lastModified = content.lastModified();
+            if (lastModified != 0) {
+                PressLogger.trace("Compressed file %s has the same content as %s", name(),
+                        content.getName());
+                recordAccess(content, lastModified);
+            } else {
+                createDir(content.getParentFile());
 
-        //If destination file already exists, delete it to fix bug on overwrite
-        File currentFile = new File(finalPath);
-        if(currentFile.exists()) {
-            currentFile.delete();
-        }
-        if (!tmpOutputFile.renameTo(file.getRealFile())) {
-            String ex = "Successfully wrote compressed file to temporary path\n" + tmpPath;
-            ex += "\nBut could not move it to final path\n" + finalPath;
-            throw new PressException(ex);
+                String msg = "Output written to temporary file\n%s\n"
+                        + "Moving from tmp path to final path:\n%s";
+                PressLogger.trace(msg, tmpPath, content.getAbsolutePath());
+                moveIntoPlace(tmpOutputFile, content, false);
+            }
+
+            // The index is written once the content is in place, so that the
+            // index never points to missing content
+            writeIndex(indexFile, newDigest);
+            file = content;
+            fileLastModified = content.lastModified();
+            digest = newDigest;
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        } finally {
+            tmpOutputFile.delete();
+            tmpOutputFile = null;
+            outputStream = null;
+            releaseLock();
         }
-        tmpOutputFile = null;
     }
 
-    private static File getTmpOutputFile(VirtualFile file) {
-        String origPath = file.getRealFile().getAbsolutePath();
-        File tmp = new File(origPath + ".tmp");
-
-        // If the temp file already exists
-        if (tmp.exists()) {
-            long tmpLastModified = tmp.lastModified();
-            long now = System.currentTimeMillis();
-
-            // If the temp file is older than the destination file, or if it is
-            // older than the allowed compression time, it must be a remnant of
-            // a previous server crash so we can overwrite it
-            if (tmpLastModified < file.lastModified()) {
-                return tmp;
-            }
-            if (now - tmpLastModified > PluginConfig.maxCompressionTimeMillis) {
-                return tmp;
-            }
+    @Override
+    public void abort() {
+        if (writer == null) {
+            return;
+        }
 
-            // Otherwise it must be currently being written by another thread,
-            // so wait for it to finish
-            while (tmp.exists()) {
-                if (System.currentTimeMillis() - now > PluginConfig.maxCompressionTimeMillis) {
-                    throw new PressException("Timeout waiting for compressed file to be generated");
-                }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            PressLogger.trace("Could not close output for %s: %s", name(), e.getMessage());
+        } finally {
+            tmpOutputFile.delete();
+            tmpOutputFile = null;
+            outputStream = null;
+            writer = null;
+            releaseLock();
+        }
+    }
 
+    @Override
+    public void copyFrom(CompressedFile source) throws IOException {
+        String sourceDigest = source.getDigest();
+        File content = getContentFile(sourceDigest);
+        long lastModified = content.lastModified();
+        if (lastModified != 0) {
+            recordAccess(content, lastModified);
+        } else {
+            // Copy to a temporary file first, so that the content file is
+            // never seen half written
+            File contentDir = content.getParentFile();
+            createDir(contentDir);
+            File tmp = File.createTempFile(content.getName() + ".", ".tmp", contentDir);
+            InputStream in = source.inputStream();
+            try {
+                OutputStream out = new FileOutputStream(tmp);
                 try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
+                    IOUtils.copy(in, out);
+                } finally {
+                    out.close();
                 }
+            } finally {
+                in.close();
             }
 
-            // Return null to indicate that the file was already generated by
-            // another thread
-            return null;
+            moveIntoPlace(tmp, content, false);
         }
 
-        return tmp;
+        createDir(indexFile.getParentFile());
+        writeIndex(indexFile, sourceDigest);
+        file = content;
+        fileLastModified = content.lastModified();
+        digest = sourceDigest;
+    }
+
+    private static void createDir(File dir) {
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new PressException("Could not create directory for compressed file output "
+                    + dir.getAbsolutePath());
+        }
     }
 
     public static int clearFileCache(String compressedDir, String extension) {
@@ -183,6 +454,17 @@ public class OnDiskCompressedFile extends CompressedFile {
             }
         }
 
+        // Then delete the index files that point to them
+        final String indexExtension = extension + INDEX_SUFFIX;
+        FileFilter indexFileFilter = new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(indexExtension);
+            }
+        };
+        for (File file : directory.listFiles(indexFileFilter)) {
+            file.delete();
+        }
+
         // Second, recursively go through sub-directories of this directory
         FileFilter directoryFilter = new FileFilter() {
             public boolean accept(File file) {
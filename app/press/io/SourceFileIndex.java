@@ -0,0 +1,203 @@
+package press.io;
+
+import java.io.File;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.Play;
+import press.PluginConfig;
+import press.PressLogger;
+
+/**
+ * An in-memory index of the files in a source directory, so that wildcard
+ * file names can be resolved without walking the directory tree.
+ * 
+ * When press.sourceFiles.checkChanges is true, the index checks the last
+ * modified date of each directory before it is used, and lists again only
+ * the directories in which files were added or removed.
+ */
+public class SourceFileIndex {
+    private static final ConcurrentMap<String, SourceFileIndex> indexes =
+            new ConcurrentHashMap<String, SourceFileIndex>();
+
+    /**
+     * Selects files from the index, eg the files matching a wildcard
+     */
+    public interface Resolver {
+        /**
+         * @param files
+         *            the paths of all files in the index, relative to the
+         *            source directory and sorted by US ASCII
+         * @return the selected paths
+         */
+        List<String> resolve(List<String> files);
+    }
+
+    /**
+     * The list of files at a point in time, and the wildcards resolved
+     * against it
+     */
+    static class Snapshot {
+        final List<String> files;
+        final ConcurrentMap<String, List<String>> resolved =
+                new ConcurrentHashMap<String, List<String>>();
+
+        Snapshot(List<String> files) {
+            this.files = files;
+        }
+    }
+
+    private final File root;
+    private Directory rootDirectory;
+    private volatile Snapshot snapshot;
+
+    SourceFileIndex(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Gets the index for the given source directory, relative to the
+     * application root
+     */
+    public static SourceFileIndex get(String sourceDir) {
+        SourceFileIndex index = indexes.get(sourceDir);
+        if (index == null) {
+            File root = new File(Play.applicationPath.getAbsolutePath() + sourceDir);
+            indexes.putIfAbsent(sourceDir, new SourceFileIndex(root));
+            index = indexes.get(sourceDir);
+        }
+
+        if (index.snapshot == null || PluginConfig.checkSourceFileChanges) {
+            index.refresh();
+        }
+        return index;
+    }
+
+    public static void clear() {
+        indexes.clear();
+    }
+
+    /**
+     * Gets the paths of all files in the source directory and its
+     * sub-directories, relative to the source directory and sorted by US
+     * ASCII
+     */
+    public List<String> getFiles() {
+        return snapshot.files;
+    }
+
+    /**
+     * Gets the list of files selected by the resolver. The result is
+     * remembered under the given name until files are added or removed.
+     */
+    public List<String> resolve(String name, Resolver resolver) {
+        Snapshot current = snapshot;
+        List<String> files = current.resolved.get(name);
+        if (files != null) {
+            return files;
+        }
+
+        files = Collections.unmodifiableList(resolver.resolve(current.files));
+        current.resolved.put(name, files);
+        return files;
+    }
+
+    synchronized void refresh() {
+        if (rootDirectory == null) {
+            rootDirectory = new Directory(root, "");
+        } else if (!rootDirectory.refresh()) {
+            return;
+        }
+
+        List<String> files = new ArrayList<String>();
+        rootDirectory.collect(files);
+
+        // sort by US ASCII by default
+        Collections.sort(files, Collator.getInstance(Locale.US));
+
+        PressLogger.trace("Indexed %d files in %s", files.size(), root.getAbsolutePath());
+        snapshot = new Snapshot(Collections.unmodifiableList(files));
+    }
+
+    static class Directory {
+        final File dir;
+
+        // Path relative to the source directory, with a trailing slash
+        final String path;
+        long lastModified;
+        List<String> fileNames;
+        List<Directory> subDirectories;
+
+        Directory(File dir, String path) {
+            this.dir = dir;
+            this.path = path;
+            list();
+        }
+
+        private void list() {
+            // Keep the sub-directories that are still there, they are
+            // checked for changes separately
+            Map<String, Directory> previous = new HashMap<String, Directory>();
+            if (subDirectories != null) {
+                for (Directory subDirectory : subDirectories) {
+                    previous.put(subDirectory.dir.getName(), subDirectory);
+                }
+            }
+
+            lastModified = dir.lastModified();
+            fileNames = new ArrayList<String>();
+            subDirectories = new ArrayList<Directory>();
+
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+
+            for (File child : children) {
+                if (!child.isDirectory()) {
+                    fileNames.add(child.getName());
+                } else if (previous.containsKey(child.getName())) {
+                    Directory subDirectory = previous.get(child.getName());
+                    subDirectory.refresh();
+                    subDirectories.add(subDirectory);
+                } else {
+                    subDirectories.add(new Directory(child, path + child.getName() + "/"));
+                }
+            }
+        }
+
+        /**
+         * Lists again any directories that have changed
+         * 
+         * @return true if anything changed
+         */
+        boolean refresh() {
+            if (dir.lastModified() != lastModified) {
+                list();
+                return true;
+            }
+
+            boolean changed = false;
+            for (Directory subDirectory : subDirectories) {
+                changed |= subDirectory.refresh();
+            }
+            return changed;
+        }
+
+        void collect(List<String> files) {
+            for (String fileName : fileNames) {
+                files.add(path + fileName);
+            }
+            for (Directory subDirectory : subDirectories) {
+                subDirectory.collect(files);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package press.io;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.vfs.VirtualFile;
+import press.PluginConfig;
+
+/**
+ * Remembers what is known about each source file (where it is, whether it
+ * exists and when it was last modified), so that adding a file to a page
+ * doesn't go through the virtual file system and probe the file system
+ * several times.
+ * 
+ * The existence and last modified date of a file are checked again when they
+ * are used, if they were last checked more than
+ * press.sourceFiles.checkIntervalMillis ago. A single call to
+ * File.lastModified() tells us both.
+ * 
+ * Files that don't exist are not remembered, as their paths may come from
+ * requests, and remembering them would let anyone fill up memory.
+ */
+public class SourceFileMetadata {
+    // Maps the path relative to the application root to the metadata
+    private static final ConcurrentMap<String, SourceFileMetadata> byPath =
+            new ConcurrentHashMap<String, SourceFileMetadata>();
+
+    // Maps the absolute path of the real file to the metadata
+    private static final ConcurrentMap<String, SourceFileMetadata> byFile =
+            new ConcurrentHashMap<String, SourceFileMetadata>();
+
+    public final VirtualFile virtualFile;
+    public final File file;
+
+    private volatile boolean exists;
+    private volatile long lastModified;
+    private volatile long checkedAt;
+
+    private SourceFileMetadata(VirtualFile virtualFile, File file) {
+        this.virtualFile = virtualFile;
+        this.file = file;
+        check(System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the metadata of the file at the given path, relative to the
+     * application root, even if the file doesn't exist
+     */
+    public static SourceFileMetadata get(String filePath) {
+        SourceFileMetadata metadata = byPath.get(filePath);
+        if (metadata == null) {
+            VirtualFile vf = FileIO.getVirtualFile(filePath);
+            metadata = getOrCreate(vf, vf.getRealFile());
+            if (metadata.exists) {
+                byPath.putIfAbsent(filePath, metadata);
+            }
+        }
+        return metadata.refresh();
+    }
+
+    /**
+     * Gets the metadata of the given file
+     */
+    public static SourceFileMetadata get(File file) {
+        SourceFileMetadata metadata = byFile.get(file.getAbsolutePath());
+        if (metadata == null) {
+            metadata = getOrCreate(null, file);
+        }
+        return metadata.refresh();
+    }
+
+    public static long lastModified(File file) {
+        return get(file).lastModified;
+    }
+
+    public static void clear() {
+        byPath.clear();
+        byFile.clear();
+    }
+
+    private static SourceFileMetadata getOrCreate(VirtualFile vf, File file) {
+        String absolutePath = file.getAbsolutePath();
+        SourceFileMetadata metadata = byFile.get(absolutePath);
+        if (metadata == null) {
+            metadata = new SourceFileMetadata(vf == null ? VirtualFile.open(file) : vf, file);
+            if (metadata.exists) {
+                byFile.put(absolutePath, metadata);
+            }
+        }
+        return metadata;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    private SourceFileMetadata refresh() {
+        long now = System.currentTimeMillis();
+        if (now - checkedAt >= PluginConfig.sourceFileCheckIntervalMillis) {
+            check(now);
+        }
+        return this;
+    }
+
+    private void check(long now) {
+        long modified = file.lastModified();
+
+        // lastModified() returns 0 if the file doesn't exist
+        exists = modified != 0 || file.exists();
+        lastModified = modified;
+        checkedAt = now;
+    }
+}
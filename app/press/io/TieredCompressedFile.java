@@ -0,0 +1,125 @@
+package press.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.List;
+
+import play.Logger;
+import press.PressException;
+import press.PressLogger;
+
+/**
+ * A compressed file kept in a chain of stores, fastest first. It is read from
+ * the first store that has it, and copied to the faster stores on the way.
+ * 
+ * It is written to the last store, and then copied to the others. The last
+ * store is the one most widely shared, eg between servers, so generation of
+ * the file is coordinated as widely as possible.
+ */
+public class TieredCompressedFile extends CompressedFile {
+    private final List<CompressedFile> tiers;
+
+    // The tier the file was found in, or null if it hasn't been found
+    private CompressedFile found;
+
+    public TieredCompressedFile(String fileKey, List<CompressedFile> tiers) {
+        super(fileKey);
+        this.tiers = tiers;
+    }
+
+    @Override
+    public boolean exists() {
+        for (int i = 0; i < tiers.size(); i++) {
+            CompressedFile tier = tiers.get(i);
+            if (tier.exists()) {
+                found = tier;
+                promote(i);
+                return true;
+            }
+        }
+
+        found = null;
+        return false;
+    }
+
+    /**
+     * Copies the file from the given tier to the faster ones
+     */
+    private void promote(int from) {
+        CompressedFile source = tiers.get(from);
+        for (int i = from - 1; i >= 0; i--) {
+            CompressedFile target = tiers.get(i);
+            try {
+                target.copyFrom(source);
+                found = target;
+                PressLogger.trace("Copied compressed file %s to a faster store", name());
+            } catch (Exception e) {
+                Logger.warn(e, "Press: Could not copy compressed file %s to a faster store",
+                        name());
+            }
+        }
+    }
+
+    private CompressedFile getFound() {
+        if (found == null && !exists()) {
+            throw new PressException("Compressed file " + getFileKey() + " does not exist");
+        }
+        return found;
+    }
+
+    @Override
+    public InputStream inputStream() {
+        return getFound().inputStream();
+    }
+
+    @Override
+    public String name() {
+        return tiers.get(0).name();
+    }
+
+    private CompressedFile getWriteTier() {
+        return tiers.get(tiers.size() - 1);
+    }
+
+    @Override
+    public Writer startWrite() {
+        return getWriteTier().startWrite();
+    }
+
+    @Override
+    public void append(File source) throws IOException {
+        getWriteTier().append(source);
+    }
+
+    @Override
+    public void close() {
+        CompressedFile written = getWriteTier();
+        written.close();
+        found = written;
+        promote(tiers.size() - 1);
+    }
+
+    @Override
+    public void abort() {
+        getWriteTier().abort();
+    }
+
+    @Override
+    public void copyFrom(CompressedFile source) throws IOException {
+        for (CompressedFile tier : tiers) {
+            tier.copyFrom(source);
+        }
+    }
+
+    @Override
+    public long length() {
+        return getFound().length();
+    }
+
+    @Override
+    public String getDigest() {
+        return exists() ? found.getDigest() : null;
+    }
+}